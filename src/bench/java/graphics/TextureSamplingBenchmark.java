@@ -0,0 +1,106 @@
+package graphics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Samples a texture along the scanlines of a screen the texture is turned on, like the rasterizer does for a rotated view.
+//getColor is the Color based TextureUtils.getColor path the rasterizer used before, sampleRGB the packed one it uses now.
+//Run with: mvn -Pbench package && java -jar target/benchmarks.jar TextureSampling
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextureSamplingBenchmark {
+    private static final int SCREEN_WIDTH = 512;
+    private static final int SCREEN_HEIGHT = 256;
+    
+    @Param({"2048"})
+    private int size;
+    //Degrees between screen rows and texture rows
+    @Param({"0", "30", "90"})
+    private int angle;
+    @Param({"BILINEAR", "ANISOTROPIC"})
+    private TextureUtils.Filtering filtering;
+    
+    private Mipmapper mipmapper;
+    //Levels (0, 0), (1, 0), (0, 1) and (1, 1), the ones read at level 0.5
+    private BufferedImage[] images;
+    private double[] u;
+    private double[] v;
+    
+    @Setup
+    public void setup() {
+        BufferedImage texture = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        int[] pixels = new int[size * size];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() & 0xFFFFFF;
+        }
+        texture.setRGB(0, 0, size, size, pixels, 0, size);
+        
+        mipmapper = new Mipmapper();
+        mipmapper.setMemoryBudget(Mipmapper.UNLIMITED);
+        mipmapper.setStorage(Mipmapper.Storage.ARGB);
+        mipmapper.loadTexture(texture);
+        //Levels are built here rather than in the first iterations
+        images = new BufferedImage[] {mipmapper.getMipmap(0, 0), mipmapper.getMipmap(1, 0), mipmapper.getMipmap(0, 1), mipmapper.getMipmap(1, 1)};
+        
+        //A bit under a texel per pixel, so level 0 and 1 are both read by anisotropic filtering
+        double cos = Math.cos(Math.toRadians(angle)) * 0.9 / size;
+        double sin = Math.sin(Math.toRadians(angle)) * 0.9 / size;
+        u = new double[SCREEN_WIDTH * SCREEN_HEIGHT];
+        v = new double[SCREEN_WIDTH * SCREEN_HEIGHT];
+        for (int y = 0; y < SCREEN_HEIGHT; y++) {
+            for (int x = 0; x < SCREEN_WIDTH; x++) {
+                double dx = x - SCREEN_WIDTH / 2.0;
+                double dy = y - SCREEN_HEIGHT / 2.0;
+                u[y * SCREEN_WIDTH + x] = 0.5 + cos * dx - sin * dy;
+                v[y * SCREEN_WIDTH + x] = 0.5 + sin * dx + cos * dy;
+            }
+        }
+    }
+    
+    @Benchmark
+    public long getColor() {
+        long sum = 0;
+        for (int i = 0; i < u.length; i++) {
+            sum += getColor(u[i], v[i]).getRGB();
+        }
+        return sum;
+    }
+    
+    @Benchmark
+    public long sampleRGB() {
+        long sum = 0;
+        for (int i = 0; i < u.length; i++) {
+            sum += mipmapper.sampleRGB(u[i], v[i], 0.5, 0.5, filtering);
+        }
+        return sum;
+    }
+    
+    //Mipmapper.getColor at level 0.5 as it was before sampleRGB: bilinear samples of the levels blended as Colors
+    private Color getColor(double u, double v) {
+        if (filtering == TextureUtils.Filtering.BILINEAR) {
+            return TextureUtils.getColor(images[3], u, v, filtering);
+        }
+        Color t = TextureUtils.interpolate(TextureUtils.getColor(images[0], u, v, filtering), TextureUtils.getColor(images[1], u, v, filtering), 0.5);
+        Color b = TextureUtils.interpolate(TextureUtils.getColor(images[2], u, v, filtering), TextureUtils.getColor(images[3], u, v, filtering), 0.5);
+        return TextureUtils.interpolate(t, b, 0.5);
+    }
+}
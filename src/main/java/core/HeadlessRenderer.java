@@ -0,0 +1,232 @@
+package core;
+
+import graphics.*;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.BiFunction;
+
+//Renders scenes to images without a window, for batch production and scripts.
+//Images and sampled terrains are kept between renders, so scenes that only move the camera skip the slow stages.
+//Like SceneRenderer an instance is meant to be used by one thread at a time.
+public class HeadlessRenderer {
+    private static final String USAGE = "Usage: java -cp <classpath> core.HeadlessRenderer [scene.properties] [key=value ...]\n" +
+            "Keys: image, output, colors (rrggbb:height,...), mode, distancePower, gamma, m1, m2, m3, useMipmaps, resolution,\n" +
+            "sampling and filtering (off|bilinear|trilinear|anisotropic|summed_area),\n" +
+            "offset, rotation, scale (x,y,z), projection (parallel|point), angle, factorL, factorD, warpX, warpY, warpZ,\n" +
+            "rayMarching, drawContours, contours, contourColor, drawFaces, showOutline, lodTolerance,\n" +
+            "width, height, viewScale, textureResolution, background (rrggbb)\n" +
+            "Large images: strip (rows rendered at a time, streams to the output file), threads; outputs ending in .raw are uncompressed";
+    
+    //Set before anything here can touch AWT, which reads it once. A value given with -Djava.awt.headless is kept
+    static {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+    }
+    
+    private final SceneRenderer renderer = new SceneRenderer();
+    private final Memo<String, Mipmapper> images;
+    private final Memo<List<Object>, ContourPlotDisplay3D.FunctionCache> terrains;
+    
+    public HeadlessRenderer() {
+        this(new Memo<>("Image", 4), new Memo<>("Terrain", 4));
+    }
+    
+    //Renderers used side by side can share what they load, the memos are thread safe
+    public HeadlessRenderer(Memo<String, Mipmapper> images, Memo<List<Object>, ContourPlotDisplay3D.FunctionCache> terrains) {
+        this.images = images;
+        this.terrains = terrains;
+    }
+    
+    public BufferedImage render(SceneDescription scene) throws IOException, InterruptedException {
+        FrameBuffer frame = new FrameBuffer();
+        renderer.render(prepare(scene), frame);
+        if (scene.getBackground() == null) {
+            return frame.getImage();
+        }
+        int[] pixels = frame.getPixels();
+        composite(pixels, pixels.length, scene.getBackground().getRGB());
+        BufferedImage result = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_RGB);
+        result.setRGB(0, 0, frame.getWidth(), frame.getHeight(), pixels, 0, frame.getWidth());
+        return result;
+    }
+    
+    //Renders strips of stripHeight rows on parallelism threads straight into a file, so the image never has to fit in memory.
+    //Files ending in .raw get the uncompressed layout of RawStripWriter, anything else becomes a PNG.
+    public void renderToFile(SceneDescription scene, Path output, int stripHeight, int parallelism) throws IOException, InterruptedException {
+        RenderSettings settings = prepare(scene);
+        StripRenderer strips = new StripRenderer(stripHeight, parallelism, renderer.getTextures());
+        Color background = scene.getBackground();
+        boolean raw = output.getFileName().toString().toLowerCase().endsWith(".raw");
+        try (Closeable writer = raw ? new RawStripWriter(output, scene.getWidth(), scene.getHeight()) : new PngStripWriter(output, scene.getWidth(), scene.getHeight(), background == null)) {
+            StripRenderer.StripSink sink = (StripRenderer.StripSink) writer;
+            strips.render(settings, new StripRenderer.StripSink() {
+                @Override
+                public void write(int y, int height, int width, int[] pixels) throws IOException {
+                    if (background != null) {
+                        composite(pixels, width * height, background.getRGB());
+                    }
+                    sink.write(y, height, width, pixels);
+                }
+                
+                @Override
+                public boolean isOrdered() {
+                    return sink.isOrdered();
+                }
+            });
+        }
+    }
+    
+    private RenderSettings prepare(SceneDescription scene) throws IOException {
+        scene.validate();
+        Mipmapper image = loadImage(scene.getImage());
+        //The terrain is built from the same mapper its key holds
+        ColorMapper mapper = scene.createColorMapper();
+        ContourPlotDisplay3D.FunctionCache cache = terrains.get(Arrays.asList(image, mapper, scene.getColors(), scene.getResolution()), key -> {
+            BiFunction<Double, Double, Double> f = mapper.mapColors(image, scene.getResolution(), scene.createColorData());
+            return new ContourPlotDisplay3D.FunctionCache((x, y) -> f.apply(x, 1 - y), scene.getResolution(), 0, 1, 0, 1);
+        });
+        return createSettings(scene, image, cache);
+    }
+    
+    //Draws the pixels over an opaque background color
+    private static void composite(int[] pixels, int count, int background) {
+        for (int i = 0; i < count; i++) {
+            int a = pixels[i] >>> 24;
+            if (a == 255) {
+                continue;
+            }
+            int c = 0xFF000000;
+            for (int shift = 0; shift < 24; shift += 8) {
+                int src = (pixels[i] >> shift) & 0xFF;
+                int dst = (background >> shift) & 0xFF;
+                c |= ((src * a + dst * (255 - a) + 127) / 255) << shift;
+            }
+            pixels[i] = c;
+        }
+    }
+    
+    private Mipmapper loadImage(String path) throws IOException {
+        //Memo takes no checked exceptions, read failures are passed through unchecked and unwrapped here
+        try {
+            return images.get(new File(path).getAbsolutePath(), key -> {
+                try {
+                    BufferedImage img = ImageIO.read(new File(key));
+                    if (img == null) {
+                        throw new IllegalArgumentException("Unsupported image format: " + key);
+                    }
+                    Mipmapper mipmapper = new Mipmapper(img);
+                    mipmapper.prebuild();
+                    return mipmapper;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    //Same settings MainWindow gives the panel
+    private static RenderSettings createSettings(SceneDescription scene, Mipmapper image, ContourPlotDisplay3D.FunctionCache cache) {
+        Transform3D transform = new Transform3D(
+                new Point3D(scene.getOffsetX(), scene.getOffsetY(), scene.getOffsetZ()),
+                new Point3D(Math.toRadians(scene.getRotationX()), Math.toRadians(scene.getRotationY()), Math.toRadians(scene.getRotationZ())),
+                new Point3D(scene.getScaleX(), scene.getScaleY(), scene.getScaleZ()));
+        double angleA = scene.isParallel() ? Math.toRadians(scene.getAngle()) : 0;
+        double factorD = scene.isParallel() ? 0 : scene.getFactorD();
+        
+        RenderSettings settings = new RenderSettings();
+        settings.addModel(cache.getModel(), transform);
+        settings.setProjection(new Projection(scene.getViewScale(), scene.getWidth(), scene.getHeight(), scene.isParallel(), angleA,
+                scene.getFactorL(), factorD, scene.isWarpX(), scene.isWarpY(), scene.isWarpZ()));
+        settings.setCache(cache);
+        settings.setImage(image);
+        settings.setTextureResolution(scene.getTextureResolution());
+        settings.setUseMipmap(scene.isUseMipmaps());
+        settings.setFiltering(scene.getFiltering());
+        settings.setDrawFaces(scene.isDrawFaces());
+        settings.setShowOutline(scene.isShowOutline());
+        settings.setLodTolerance(scene.getLodTolerance());
+        settings.setRayMarching(scene.isRayMarching());
+        settings.setBackground(scene.getBackground() != null ? scene.getBackground().getRGB() : 0);
+        settings.setDrawContours(scene.isDrawContours());
+        settings.setContours(scene.getContours());
+        settings.setContourColor(scene.getContourColor());
+        return settings;
+    }
+    
+    public Memo<String, Mipmapper> getImages() {
+        return images;
+    }
+    
+    public Memo<List<Object>, ContourPlotDisplay3D.FunctionCache> getTerrains() {
+        return terrains;
+    }
+    
+    //Arguments are an optional properties file followed by key=value pairs overriding it
+    public static Properties parseArguments(String[] args) throws IOException {
+        Properties properties = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            int split = args[i].indexOf('=');
+            if (split > 0) {
+                properties.setProperty(args[i].substring(0, split).trim(), args[i].substring(split + 1).trim());
+            }
+            else if (i == 0) {
+                try (InputStream in = new FileInputStream(args[i])) {
+                    properties.load(in);
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Expected key=value: " + args[i]);
+            }
+        }
+        return properties;
+    }
+    
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            Properties properties = parseArguments(args);
+            SceneDescription scene = SceneDescription.fromProperties(properties);
+            File output = new File(properties.getProperty("output", "render.png"));
+            int strip = Integer.parseInt(properties.getProperty("strip", output.getName().toLowerCase().endsWith(".raw") ? "256" : "0"));
+            int threads = Integer.parseInt(properties.getProperty("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+            
+            long start = System.nanoTime();
+            if (strip > 0) {
+                new HeadlessRenderer().renderToFile(scene, output.toPath(), strip, threads);
+            }
+            else {
+                BufferedImage image = new HeadlessRenderer().render(scene);
+                if (!ImageIO.write(image, "png", output)) {
+                    throw new IOException("No PNG writer available");
+                }
+            }
+            System.out.println("Rendered " + output + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            System.exit(0);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 
 public class MainWindow {
@@ -65,6 +66,8 @@ public class MainWindow {
     Mipmapper image;
     Map<Integer, Double> tableData = new HashMap<>();
     ColorMapper colorMapper = new ColorMapper();
+    private final TerrainPipeline pipeline = new TerrainPipeline();
+    private int displayGeneration = 0;
     ColorMapper.Mode[] modes = new ColorMapper.Mode[]{ColorMapper.Mode.RGB, ColorMapper.Mode.HSV, ColorMapper.Mode.HSL, ColorMapper.Mode.CIE76, ColorMapper.Mode.CIE94, ColorMapper.Mode.CIEDE2000};
     
     private MainWindow() {
@@ -127,8 +130,6 @@ public class MainWindow {
     
     private void display() {
         try {
-            graph.getModels().clear();
-            
             double offX = Double.parseDouble(offXField.getText());
             double offY = Double.parseDouble(offYField.getText());
             double offZ = Double.parseDouble(offZField.getText());
@@ -150,14 +151,19 @@ public class MainWindow {
             double m1 = Double.parseDouble(param1Field.getText());
             double m2 = Double.parseDouble(param2Field.getText());
             double m3 = Double.parseDouble(param3Field.getText());
+            //Modes are parallel and point projection, then the same two with ray marching
+            boolean parallel = modeSel.getSelectedIndex() % 2 == 0;
+            boolean rayMarching = modeSel.getSelectedIndex() >= 2;
+            double factorD = !parallel ? Double.parseDouble(camOffsetField.getText()) : 0;
             
             if (image == null) {
                 log.append("\nNo image selected");
                 return;
             }
-            graph.setImage(image);
             //graph.getModels().put(models.get(modelSel.getSelectedIndex()), transform);
             //BiFunction<Double, Double, Double> f = (x, z) -> -((1/5.0) * Math.sin(x) * Math.cos(z) - (3/2.0) * Math.cos(7 * (Math.pow(x - Math.PI, 2) + Math.pow(z - Math.PI, 2))/4) * Math.exp(-(Math.pow(x - Math.PI, 2) + Math.pow(z - Math.PI, 2))));
+            //A running job keeps its own mapper, so settings changed now can not leak into it
+            colorMapper = new ColorMapper();
             colorMapper.setMode(modes[colorModeSel.getSelectedIndex()]);
             colorMapper.setDistancePower(distancePower);
             colorMapper.setGamma(gamma);
@@ -171,45 +177,119 @@ public class MainWindow {
                 colorData.put(new Color(i), tableData.get(i));
             }
             
-            BiFunction<Double, Double, Double> f = colorMapper.mapColors(image, resolution, colorData);
-            
-            ContourPlotDisplay3D.FunctionCache cache = new ContourPlotDisplay3D.FunctionCache((x, y) -> f.apply(x, 1 - y), resolution, 0, 1, 0, 1);
-            
-            graph.getModels().put(cache.getModel(), transform);
-            graph.setCache(cache);
-            graph.setDrawContours(showContoursCheckBox.isSelected());
-            graph.setContours(contours);
-            graph.setContourColor(brightContoursCheckBox.isSelected() ? Color.WHITE : (showBaseTextureCheckBox.isSelected() ? Color.BLACK : Color.CYAN));
-            graph.setUseMipmap(useMipmapsCheckBox.isSelected());
-            graph.setDrawFaces(showBaseTextureCheckBox.isSelected());
-            
-            graph.setParallelMode(modeSel.getSelectedIndex() == 0);
-            graph.setShowOutline(showOutline.isSelected());
+            Mipmapper selectedImage = image;
+            boolean drawContours = showContoursCheckBox.isSelected();
+            Color contourColor = brightContoursCheckBox.isSelected() ? Color.WHITE : (showBaseTextureCheckBox.isSelected() ? Color.BLACK : Color.CYAN);
+            boolean useMipmap = useMipmapsCheckBox.isSelected();
+            boolean drawFaces = showBaseTextureCheckBox.isSelected();
+            boolean outline = showOutline.isSelected();
+            boolean warpX = xCheckBox.isSelected();
+            boolean warpY = yCheckBox.isSelected();
+            boolean warpZ = zCheckBox.isSelected();
+            int angle = angleSel.getSelectedIndex();
             
-            if (modeSel.getSelectedIndex() != 0) {
-                graph.setAngleA(0);
-                graph.setFactorD(Double.parseDouble(camOffsetField.getText()));
-                graph.setWarpX(xCheckBox.isSelected());
-                graph.setWarpY(yCheckBox.isSelected());
-                graph.setWarpZ(zCheckBox.isSelected());
-            }
-            else {
-                switch (angleSel.getSelectedIndex()) {
-                    case 0:
-                        graph.setAngleA(Math.toRadians(30));
-                        graph.setFactorL(0.5);
-                        break;
-                    case 1:
-                        graph.setAngleA(Math.toRadians(45));
-                        graph.setFactorL(1);
-                        break;
-                    default:
-                        graph.setAngleA(Math.toRadians(0));
-                        graph.setFactorL(0);
+            //Heights are built in the background, the display only changes once everything is ready
+            int generation = ++displayGeneration;
+            pipeline.submit(image, colorMapper, colorData, resolution, new TerrainPipeline.Listener() {
+                //Stages report progress from the scheduler's worker threads
+                private final AtomicInteger reported = new AtomicInteger();
+                
+                @Override
+                public void stageStarted(TerrainPipeline.Stage stage) {
+                    reported.set(0);
+                    onEDT(() -> log.append("\n" + stage.getDescription() + "..."));
                 }
-            }
-            
-            updateGraph();
+                
+                @Override
+                public void stageCached(TerrainPipeline.Stage stage) {
+                    onEDT(() -> log.append("\n" + stage.getDescription() + ": cached"));
+                }
+                
+                @Override
+                public void progress(TerrainPipeline.Stage stage, double fraction) {
+                    //Report quarters only, the log is not a progress bar
+                    int quarter = (int) (fraction * 4);
+                    int last = reported.get();
+                    if (quarter > last && quarter < 4 && reported.compareAndSet(last, quarter)) {
+                        onEDT(() -> log.append(" " + (25 * quarter) + "%"));
+                    }
+                }
+                
+                @Override
+                public void stageCompleted(TerrainPipeline.Stage stage, long nanos) {
+                    onEDT(() -> log.append(" done in " + nanos / 1000000 + " ms"));
+                }
+                
+                @Override
+                public void completed(TerrainPipeline.Result result) {
+                    onEDT(() -> {
+                        RenderSettings previous = graph.createSettings();
+                        graph.getModels().clear();
+                        graph.setImage(selectedImage);
+                        graph.getModels().put(result.getModel(), transform);
+                        graph.setCache(result.getCache());
+                        graph.setDrawContours(drawContours);
+                        graph.setContours(contours);
+                        graph.setContourColor(contourColor);
+                        graph.setUseMipmap(useMipmap);
+                        graph.setDrawFaces(drawFaces);
+                        
+                        graph.setParallelMode(parallel);
+                        graph.setRayMarching(rayMarching);
+                        graph.setShowOutline(outline);
+                        
+                        if (!parallel) {
+                            graph.setAngleA(0);
+                            graph.setFactorD(factorD);
+                            graph.setWarpX(warpX);
+                            graph.setWarpY(warpY);
+                            graph.setWarpZ(warpZ);
+                        }
+                        else {
+                            switch (angle) {
+                                case 0:
+                                    graph.setAngleA(Math.toRadians(30));
+                                    graph.setFactorL(0.5);
+                                    break;
+                                case 1:
+                                    graph.setAngleA(Math.toRadians(45));
+                                    graph.setFactorL(1);
+                                    break;
+                                default:
+                                    graph.setAngleA(Math.toRadians(0));
+                                    graph.setFactorL(0);
+                            }
+                        }
+                        
+                        log.append("\n" + pipeline.getFunctions() + "\n" + pipeline.getHeights());
+                        //The panel keeps its frame while the settings stay equal, a new one reports its texture when done
+                        boolean cached = graph.createSettings().equals(previous);
+                        log.append("\nFrame: " + (cached ? "cached" : "rendering"));
+                        if (!cached) {
+                            graph.setFrameLog(textureState -> {
+                                graph.setFrameLog(null);
+                                onEDT(() -> log.append("\n" + textureState));
+                            });
+                        }
+                        updateGraph();
+                    });
+                }
+                
+                @Override
+                public void failed(Exception e) {
+                    e.printStackTrace();
+                    onEDT(() -> log.append("\nFailed: " + e));
+                }
+                
+                //Updates of a job replaced by a newer one are dropped
+                private void onEDT(Runnable update) {
+                    SwingUtilities.invokeLater(() -> {
+                        if (generation == displayGeneration) {
+                            update.run();
+                        }
+                    });
+                }
+            });
         }
         catch (NumberFormatException e) {
             log.append("Invalid format!\n");
@@ -233,6 +313,8 @@ public class MainWindow {
                 BufferedImage img = ImageIO.read(chooser.getSelectedFile());
                 imageNameField.setText(chooser.getSelectedFile().getName());
                 image = new Mipmapper(img);
+                //Mipmaps are built while the rest of the settings are filled in
+                image.prebuild();
             } catch (IOException e) {
                 e.printStackTrace();
             }
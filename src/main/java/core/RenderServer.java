@@ -0,0 +1,277 @@
+package core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import graphics.ContourPlotDisplay3D;
+import graphics.Memo;
+import graphics.Mipmapper;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Renders scenes over HTTP on the loopback interface.
+//GET /render?key=value&... or POST /render with a properties body returns a PNG, keys are the ones of HeadlessRenderer.
+//GET /stats returns counters and latency percentiles as text.
+//Renders run on a fixed number of workers behind a bounded queue, requests that find the queue full are answered with 503
+//right away. Requests for a scene already being rendered wait for that render instead of queueing another one.
+public class RenderServer {
+    private static final int LATENCY_SAMPLES = 1024;
+    
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final ExecutorService handlers;
+    //Images and terrains are loaded once for all workers, only the renderer itself is per worker as it is not thread safe
+    private final Memo<String, Mipmapper> images = new Memo<>("Image", 4);
+    private final Memo<List<Object>, ContourPlotDisplay3D.FunctionCache> terrains = new Memo<>("Terrain", 4);
+    private final ThreadLocal<HeadlessRenderer> renderers = ThreadLocal.withInitial(() -> new HeadlessRenderer(images, terrains));
+    private final ConcurrentMap<SceneDescription, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    //Latencies of the last requests in milliseconds, from arrival to the response being sent
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount = 0;
+    
+    public RenderServer(int port, int concurrency, int queueSize) throws IOException {
+        if (concurrency < 1 || queueSize < 0) {
+            throw new IllegalArgumentException("Invalid concurrency or queue size");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(), daemonThreads("render-worker"), new ThreadPoolExecutor.AbortPolicy());
+        //Handlers only parse and hand requests over, responses are sent when the render completes
+        handlers = Executors.newFixedThreadPool(2, daemonThreads("render-http"));
+        server.setExecutor(handlers);
+        server.createContext("/render", this::handleRender);
+        server.createContext("/stats", this::handleStats);
+    }
+    
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+        handlers.shutdownNow();
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    private void handleRender(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        SceneDescription scene;
+        try {
+            scene = SceneDescription.fromProperties(readProperties(exchange));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, start, 400, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> future = inFlight.putIfAbsent(scene, created);
+        if (future != null) {
+            deduplicated.incrementAndGet();
+        }
+        else {
+            future = created;
+            try {
+                workers.execute(() -> render(scene, created));
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(scene, created);
+                rejected.incrementAndGet();
+                created.completeExceptionally(e);
+            }
+        }
+        
+        future.whenComplete((png, error) -> {
+            try {
+                if (error == null) {
+                    respond(exchange, start, 200, "image/png", png);
+                }
+                else if (error instanceof RejectedExecutionException) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    respond(exchange, start, 503, "text/plain", "Render queue is full\n".getBytes(StandardCharsets.UTF_8));
+                }
+                else if (error instanceof IllegalArgumentException) {
+                    respond(exchange, start, 400, "text/plain", (error.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                else {
+                    respond(exchange, start, 500, "text/plain", (error + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+    
+    private void render(SceneDescription scene, CompletableFuture<byte[]> result) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(renderers.get().render(scene), "png", out);
+            rendered.incrementAndGet();
+            //Later requests for the scene start a new render, so one finished after this can not get an old image
+            inFlight.remove(scene, result);
+            result.complete(out.toByteArray());
+        } catch (Exception e) {
+            if (!(e instanceof IllegalArgumentException)) {
+                e.printStackTrace();
+            }
+            failed.incrementAndGet();
+            inFlight.remove(scene, result);
+            result.completeExceptionally(e);
+        }
+    }
+    
+    private void handleStats(HttpExchange exchange) throws IOException {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        StringBuilder stats = new StringBuilder();
+        stats.append("requests ").append(requests.get()).append('\n');
+        stats.append("rendered ").append(rendered.get()).append('\n');
+        stats.append("deduplicated ").append(deduplicated.get()).append('\n');
+        stats.append("rejected ").append(rejected.get()).append('\n');
+        stats.append("failed ").append(failed.get()).append('\n');
+        stats.append("active ").append(workers.getActiveCount()).append('\n');
+        stats.append("queued ").append(workers.getQueue().size()).append('\n');
+        stats.append("latency.samples ").append(sorted.length).append('\n');
+        stats.append("latency.p50 ").append(percentile(sorted, 0.5)).append('\n');
+        stats.append("latency.p90 ").append(percentile(sorted, 0.9)).append('\n');
+        stats.append("latency.p99 ").append(percentile(sorted, 0.99)).append('\n');
+        stats.append("latency.max ").append(percentile(sorted, 1)).append('\n');
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        byte[] body = stats.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    //Nearest rank percentile in milliseconds, -1 without samples
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+    
+    private void respond(HttpExchange exchange, long start, int status, String type, byte[] body) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", type);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+            long latency = (System.nanoTime() - start) / 1000000;
+            synchronized (latencies) {
+                latencies[latencyCount % LATENCY_SAMPLES] = latency;
+                latencyCount++;
+            }
+        }
+    }
+    
+    //Query parameters, followed by the body read as properties for POST requests
+    private static Properties readProperties(HttpExchange exchange) throws IOException {
+        Properties properties = new Properties();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int split = pair.indexOf('=');
+                if (split > 0) {
+                    properties.setProperty(decode(pair.substring(0, split)), decode(pair.substring(split + 1)));
+                }
+            }
+        }
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            try (InputStream in = exchange.getRequestBody()) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+    
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public long getRequests() {
+        return requests.get();
+    }
+    
+    public long getRendered() {
+        return rendered.get();
+    }
+    
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+    
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    //Arguments are key=value pairs: port (0 picks a free one), concurrency and queue
+    public static void main(String[] args) {
+        try {
+            Properties properties = HeadlessRenderer.parseArguments(args);
+            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                if (!Arrays.asList("port", "concurrency", "queue").contains(entry.getKey().toString())) {
+                    throw new IllegalArgumentException("Unknown key: " + entry.getKey());
+                }
+            }
+            int port = Integer.parseInt(properties.getProperty("port", "8080"));
+            int concurrency = Integer.parseInt(properties.getProperty("concurrency", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+            int queue = Integer.parseInt(properties.getProperty("queue", "16"));
+            RenderServer server = new RenderServer(port, concurrency, queue);
+            server.start();
+            System.out.println("Rendering on http://localhost:" + server.getPort() + "/render with " + concurrency + " workers and " + queue + " queued");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java -cp <classpath> core.RenderServer [port=8080] [concurrency=n] [queue=16]");
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
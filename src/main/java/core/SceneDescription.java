@@ -0,0 +1,575 @@
+package core;
+
+import graphics.ColorMapper;
+import graphics.TextureUtils;
+
+import java.awt.*;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+
+//Everything needed to render a terrain without the window: the same inputs MainWindow.display() reads from its fields.
+//Scenes are read from properties, missing keys keep the defaults of the window.
+public class SceneDescription {
+    private String image;
+    //Colors as RGB values and the heights they map to
+    private Map<Integer, Double> colors = new TreeMap<>();
+    private ColorMapper.Mode mode = ColorMapper.Mode.RGB;
+    private double distancePower = 1;
+    private double gamma = 1;
+    private double m1 = 1;
+    private double m2 = 1;
+    private double m3 = 1;
+    private boolean useMipmaps = true;
+    //Filtering that averages the image under each grid cell, and the one used for the faces on screen
+    private TextureUtils.Filtering sampling = TextureUtils.Filtering.ANISOTROPIC;
+    private TextureUtils.Filtering filtering = TextureUtils.Filtering.ANISOTROPIC;
+    private int resolution = 50;
+    
+    private double offsetX = 0;
+    private double offsetY = 0;
+    private double offsetZ = 0;
+    //Degrees
+    private double rotationX = 0;
+    private double rotationY = 0;
+    private double rotationZ = 0;
+    private double scaleX = 300;
+    private double scaleY = 30;
+    private double scaleZ = 300;
+    
+    private boolean parallel = true;
+    //Degrees
+    private double angle = 30;
+    private double factorL = 0.5;
+    private double factorD = 300;
+    private boolean warpX = true;
+    private boolean warpY = true;
+    private boolean warpZ = true;
+    private boolean rayMarching = false;
+    
+    private boolean drawContours = true;
+    private int contours = 20;
+    //Null picks the color the window would use
+    private Color contourColor;
+    private boolean drawFaces = true;
+    private boolean showOutline = false;
+    private double lodTolerance = 1;
+    
+    private int width = 800;
+    private int height = 600;
+    private double viewScale = 1;
+    private int textureResolution = 512;
+    //Null keeps the background transparent
+    private Color background;
+    
+    public static SceneDescription fromProperties(Properties properties) {
+        SceneDescription scene = new SceneDescription();
+        scene.image = properties.getProperty("image", scene.image);
+        if (properties.containsKey("colors")) {
+            scene.colors = parseColors(properties.getProperty("colors"));
+        }
+        if (properties.containsKey("mode")) {
+            scene.mode = ColorMapper.Mode.valueOf(properties.getProperty("mode").trim().toUpperCase());
+        }
+        scene.distancePower = getDouble(properties, "distancePower", scene.distancePower);
+        scene.gamma = getDouble(properties, "gamma", scene.gamma);
+        scene.m1 = getDouble(properties, "m1", scene.m1);
+        scene.m2 = getDouble(properties, "m2", scene.m2);
+        scene.m3 = getDouble(properties, "m3", scene.m3);
+        scene.useMipmaps = getBoolean(properties, "useMipmaps", scene.useMipmaps);
+        if (properties.containsKey("sampling")) {
+            scene.sampling = TextureUtils.Filtering.valueOf(properties.getProperty("sampling").trim().toUpperCase());
+        }
+        if (properties.containsKey("filtering")) {
+            scene.filtering = TextureUtils.Filtering.valueOf(properties.getProperty("filtering").trim().toUpperCase());
+        }
+        scene.resolution = getInt(properties, "resolution", scene.resolution);
+        
+        double[] offset = getVector(properties, "offset", scene.offsetX, scene.offsetY, scene.offsetZ);
+        scene.offsetX = offset[0];
+        scene.offsetY = offset[1];
+        scene.offsetZ = offset[2];
+        double[] rotation = getVector(properties, "rotation", scene.rotationX, scene.rotationY, scene.rotationZ);
+        scene.rotationX = rotation[0];
+        scene.rotationY = rotation[1];
+        scene.rotationZ = rotation[2];
+        double[] scale = getVector(properties, "scale", scene.scaleX, scene.scaleY, scene.scaleZ);
+        scene.scaleX = scale[0];
+        scene.scaleY = scale[1];
+        scene.scaleZ = scale[2];
+        
+        if (properties.containsKey("projection")) {
+            String projection = properties.getProperty("projection").trim().toLowerCase();
+            if (!projection.equals("parallel") && !projection.equals("point")) {
+                throw new IllegalArgumentException("Unknown projection: " + projection);
+            }
+            scene.parallel = projection.equals("parallel");
+        }
+        scene.angle = getDouble(properties, "angle", scene.angle);
+        scene.factorL = getDouble(properties, "factorL", scene.factorL);
+        scene.factorD = getDouble(properties, "factorD", scene.factorD);
+        scene.warpX = getBoolean(properties, "warpX", scene.warpX);
+        scene.warpY = getBoolean(properties, "warpY", scene.warpY);
+        scene.warpZ = getBoolean(properties, "warpZ", scene.warpZ);
+        scene.rayMarching = getBoolean(properties, "rayMarching", scene.rayMarching);
+        
+        scene.drawContours = getBoolean(properties, "drawContours", scene.drawContours);
+        scene.contours = getInt(properties, "contours", scene.contours);
+        scene.contourColor = getColor(properties, "contourColor", scene.contourColor);
+        scene.drawFaces = getBoolean(properties, "drawFaces", scene.drawFaces);
+        scene.showOutline = getBoolean(properties, "showOutline", scene.showOutline);
+        scene.lodTolerance = getDouble(properties, "lodTolerance", scene.lodTolerance);
+        
+        scene.width = getInt(properties, "width", scene.width);
+        scene.height = getInt(properties, "height", scene.height);
+        scene.viewScale = getDouble(properties, "viewScale", scene.viewScale);
+        scene.textureResolution = getInt(properties, "textureResolution", scene.textureResolution);
+        scene.background = getColor(properties, "background", scene.background);
+        scene.validate();
+        return scene;
+    }
+    
+    public void validate() {
+        if (image == null || image.isEmpty()) {
+            throw new IllegalArgumentException("No image given");
+        }
+        if (colors.isEmpty()) {
+            throw new IllegalArgumentException("No colors given");
+        }
+        if (resolution < 1 || width < 1 || height < 1 || textureResolution < 1) {
+            throw new IllegalArgumentException("Sizes have to be positive");
+        }
+    }
+    
+    //Comma separated hex color and height pairs, such as ffffff:1.0,000000:0
+    private static Map<Integer, Double> parseColors(String value) {
+        Map<Integer, Double> colors = new TreeMap<>();
+        for (String entry : value.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2 || parts[0].trim().length() != 6) {
+                throw new IllegalArgumentException("Invalid color entry: " + entry);
+            }
+            colors.put(Integer.parseInt(parts[0].trim(), 16), Double.parseDouble(parts[1].trim()));
+        }
+        return colors;
+    }
+    
+    private static double getDouble(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+    
+    private static int getInt(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+    
+    private static boolean getBoolean(Properties properties, String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+    
+    private static Color getColor(Properties properties, String key, Color defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : new Color(Integer.parseInt(value.trim(), 16));
+    }
+    
+    private static double[] getVector(Properties properties, String key, double x, double y, double z) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return new double[]{x, y, z};
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException(key + " needs three values");
+        }
+        return new double[]{Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()), Double.parseDouble(parts[2].trim())};
+    }
+    
+    //Mapper for one render, mapColors reads the settings lazily so every render needs its own
+    public ColorMapper createColorMapper() {
+        ColorMapper mapper = new ColorMapper();
+        mapper.setMode(mode);
+        mapper.setDistancePower(distancePower);
+        mapper.setGamma(gamma);
+        mapper.setM1(m1);
+        mapper.setM2(m2);
+        mapper.setM3(m3);
+        mapper.setUseMipmaps(useMipmaps);
+        mapper.setFiltering(sampling);
+        return mapper;
+    }
+    
+    public Map<Color, Double> createColorData() {
+        Map<Color, Double> colorData = new TreeMap<>((a, b) -> Integer.compare(a.getRGB(), b.getRGB()));
+        for (Map.Entry<Integer, Double> entry : colors.entrySet()) {
+            colorData.put(new Color(entry.getKey()), entry.getValue());
+        }
+        return colorData;
+    }
+    
+    public String getImage() {
+        return image;
+    }
+    
+    public void setImage(String image) {
+        this.image = image;
+    }
+    
+    public Map<Integer, Double> getColors() {
+        return colors;
+    }
+    
+    public void setColors(Map<Integer, Double> colors) {
+        this.colors = new TreeMap<>(colors);
+    }
+    
+    public ColorMapper.Mode getMode() {
+        return mode;
+    }
+    
+    public void setMode(ColorMapper.Mode mode) {
+        this.mode = mode;
+    }
+    
+    public double getDistancePower() {
+        return distancePower;
+    }
+    
+    public void setDistancePower(double distancePower) {
+        this.distancePower = distancePower;
+    }
+    
+    public double getGamma() {
+        return gamma;
+    }
+    
+    public void setGamma(double gamma) {
+        this.gamma = gamma;
+    }
+    
+    public double getM1() {
+        return m1;
+    }
+    
+    public void setM1(double m1) {
+        this.m1 = m1;
+    }
+    
+    public double getM2() {
+        return m2;
+    }
+    
+    public void setM2(double m2) {
+        this.m2 = m2;
+    }
+    
+    public double getM3() {
+        return m3;
+    }
+    
+    public void setM3(double m3) {
+        this.m3 = m3;
+    }
+    
+    public boolean isUseMipmaps() {
+        return useMipmaps;
+    }
+    
+    public void setUseMipmaps(boolean useMipmaps) {
+        this.useMipmaps = useMipmaps;
+    }
+    
+    public TextureUtils.Filtering getSampling() {
+        return sampling;
+    }
+    
+    public void setSampling(TextureUtils.Filtering sampling) {
+        this.sampling = sampling;
+    }
+    
+    public TextureUtils.Filtering getFiltering() {
+        return filtering;
+    }
+    
+    public void setFiltering(TextureUtils.Filtering filtering) {
+        this.filtering = filtering;
+    }
+    
+    public int getResolution() {
+        return resolution;
+    }
+    
+    public void setResolution(int resolution) {
+        this.resolution = resolution;
+    }
+    
+    public double getOffsetX() {
+        return offsetX;
+    }
+    
+    public double getOffsetY() {
+        return offsetY;
+    }
+    
+    public double getOffsetZ() {
+        return offsetZ;
+    }
+    
+    public void setOffset(double x, double y, double z) {
+        offsetX = x;
+        offsetY = y;
+        offsetZ = z;
+    }
+    
+    public double getRotationX() {
+        return rotationX;
+    }
+    
+    public double getRotationY() {
+        return rotationY;
+    }
+    
+    public double getRotationZ() {
+        return rotationZ;
+    }
+    
+    public void setRotation(double x, double y, double z) {
+        rotationX = x;
+        rotationY = y;
+        rotationZ = z;
+    }
+    
+    public double getScaleX() {
+        return scaleX;
+    }
+    
+    public double getScaleY() {
+        return scaleY;
+    }
+    
+    public double getScaleZ() {
+        return scaleZ;
+    }
+    
+    public void setScale(double x, double y, double z) {
+        scaleX = x;
+        scaleY = y;
+        scaleZ = z;
+    }
+    
+    public boolean isParallel() {
+        return parallel;
+    }
+    
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+    
+    public double getAngle() {
+        return angle;
+    }
+    
+    public void setAngle(double angle) {
+        this.angle = angle;
+    }
+    
+    public double getFactorL() {
+        return factorL;
+    }
+    
+    public void setFactorL(double factorL) {
+        this.factorL = factorL;
+    }
+    
+    public double getFactorD() {
+        return factorD;
+    }
+    
+    public void setFactorD(double factorD) {
+        this.factorD = factorD;
+    }
+    
+    public boolean isWarpX() {
+        return warpX;
+    }
+    
+    public void setWarpX(boolean warpX) {
+        this.warpX = warpX;
+    }
+    
+    public boolean isWarpY() {
+        return warpY;
+    }
+    
+    public void setWarpY(boolean warpY) {
+        this.warpY = warpY;
+    }
+    
+    public boolean isWarpZ() {
+        return warpZ;
+    }
+    
+    public void setWarpZ(boolean warpZ) {
+        this.warpZ = warpZ;
+    }
+    
+    public boolean isRayMarching() {
+        return rayMarching;
+    }
+    
+    public void setRayMarching(boolean rayMarching) {
+        this.rayMarching = rayMarching;
+    }
+    
+    public boolean isDrawContours() {
+        return drawContours;
+    }
+    
+    public void setDrawContours(boolean drawContours) {
+        this.drawContours = drawContours;
+    }
+    
+    public int getContours() {
+        return contours;
+    }
+    
+    public void setContours(int contours) {
+        this.contours = contours;
+    }
+    
+    //The window draws black contours over the texture and cyan ones without it
+    public Color getContourColor() {
+        if (contourColor == null) {
+            return drawFaces ? Color.BLACK : Color.CYAN;
+        }
+        return contourColor;
+    }
+    
+    public void setContourColor(Color contourColor) {
+        this.contourColor = contourColor;
+    }
+    
+    public boolean isDrawFaces() {
+        return drawFaces;
+    }
+    
+    public void setDrawFaces(boolean drawFaces) {
+        this.drawFaces = drawFaces;
+    }
+    
+    public boolean isShowOutline() {
+        return showOutline;
+    }
+    
+    public void setShowOutline(boolean showOutline) {
+        this.showOutline = showOutline;
+    }
+    
+    public double getLodTolerance() {
+        return lodTolerance;
+    }
+    
+    public void setLodTolerance(double lodTolerance) {
+        this.lodTolerance = lodTolerance;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public void setWidth(int width) {
+        this.width = width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public void setHeight(int height) {
+        this.height = height;
+    }
+    
+    public double getViewScale() {
+        return viewScale;
+    }
+    
+    public void setViewScale(double viewScale) {
+        this.viewScale = viewScale;
+    }
+    
+    public int getTextureResolution() {
+        return textureResolution;
+    }
+    
+    public void setTextureResolution(int textureResolution) {
+        this.textureResolution = textureResolution;
+    }
+    
+    public Color getBackground() {
+        return background;
+    }
+    
+    public void setBackground(Color background) {
+        this.background = background;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SceneDescription that = (SceneDescription) o;
+        return Double.compare(that.distancePower, distancePower) == 0 &&
+                Double.compare(that.gamma, gamma) == 0 &&
+                Double.compare(that.m1, m1) == 0 &&
+                Double.compare(that.m2, m2) == 0 &&
+                Double.compare(that.m3, m3) == 0 &&
+                useMipmaps == that.useMipmaps &&
+                resolution == that.resolution &&
+                Double.compare(that.offsetX, offsetX) == 0 &&
+                Double.compare(that.offsetY, offsetY) == 0 &&
+                Double.compare(that.offsetZ, offsetZ) == 0 &&
+                Double.compare(that.rotationX, rotationX) == 0 &&
+                Double.compare(that.rotationY, rotationY) == 0 &&
+                Double.compare(that.rotationZ, rotationZ) == 0 &&
+                Double.compare(that.scaleX, scaleX) == 0 &&
+                Double.compare(that.scaleY, scaleY) == 0 &&
+                Double.compare(that.scaleZ, scaleZ) == 0 &&
+                parallel == that.parallel &&
+                Double.compare(that.angle, angle) == 0 &&
+                Double.compare(that.factorL, factorL) == 0 &&
+                Double.compare(that.factorD, factorD) == 0 &&
+                warpX == that.warpX &&
+                warpY == that.warpY &&
+                warpZ == that.warpZ &&
+                rayMarching == that.rayMarching &&
+                drawContours == that.drawContours &&
+                contours == that.contours &&
+                drawFaces == that.drawFaces &&
+                showOutline == that.showOutline &&
+                Double.compare(that.lodTolerance, lodTolerance) == 0 &&
+                width == that.width &&
+                height == that.height &&
+                Double.compare(that.viewScale, viewScale) == 0 &&
+                textureResolution == that.textureResolution &&
+                Objects.equals(image, that.image) &&
+                colors.equals(that.colors) &&
+                mode == that.mode &&
+                sampling == that.sampling &&
+                filtering == that.filtering &&
+                Objects.equals(contourColor, that.contourColor) &&
+                Objects.equals(background, that.background);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(image, colors, mode, distancePower, gamma, m1, m2, m3, useMipmaps, sampling, filtering, resolution, offsetX, offsetY, offsetZ,
+                rotationX, rotationY, rotationZ, scaleX, scaleY, scaleZ, parallel, angle, factorL, factorD, warpX, warpY, warpZ,
+                rayMarching, drawContours, contours, contourColor, drawFaces, showOutline, lodTolerance, width, height, viewScale,
+                textureResolution, background);
+    }
+}
@@ -14,6 +14,8 @@ public class ColorMapper {
     private double distancePower = 2;
     private double gamma = 2.2;
     private boolean useMipmaps = true;
+    //How the image under a grid cell is averaged when mipmaps are used
+    private TextureUtils.Filtering filtering = TextureUtils.Filtering.ANISOTROPIC;
     
     private double m1 = 1;
     private double m2 = 1;
@@ -38,7 +40,7 @@ public class ColorMapper {
                 double mmU = Math.log(Math.max(1, image.getTexture().getWidth() / (double)resolution)) / Math.log(2);
                 double mmV = Math.log(Math.max(1, image.getTexture().getHeight() / (double)resolution)) / Math.log(2);
                 
-                pointColor = image.getColor(u, v, mmU, mmV, TextureUtils.Filtering.ANISOTROPIC);
+                pointColor = image.getColor(u, v, mmU, mmV, filtering);
             }
             else {
                 pointColor = image.getColor(u, v, 0, 0, TextureUtils.Filtering.BILINEAR);
@@ -165,6 +167,34 @@ public class ColorMapper {
         this.useMipmaps = useMipmaps;
     }
     
+    public TextureUtils.Filtering getFiltering() {
+        return filtering;
+    }
+    
+    public void setFiltering(TextureUtils.Filtering filtering) {
+        this.filtering = filtering;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ColorMapper that = (ColorMapper) o;
+        return Double.compare(that.distancePower, distancePower) == 0 &&
+                Double.compare(that.gamma, gamma) == 0 &&
+                useMipmaps == that.useMipmaps &&
+                Double.compare(that.m1, m1) == 0 &&
+                Double.compare(that.m2, m2) == 0 &&
+                Double.compare(that.m3, m3) == 0 &&
+                mode == that.mode &&
+                filtering == that.filtering;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(mode, distancePower, gamma, useMipmaps, filtering, m1, m2, m3);
+    }
+    
     public enum Mode {
         RGB, HSV, HSL, CIE76, CIE94, CIEDE2000
     }
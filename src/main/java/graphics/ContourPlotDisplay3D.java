@@ -8,20 +8,14 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 
 public class ContourPlotDisplay3D extends JPanel {
-    private static final Color GRID_COLOR = Color.WHITE;
-    private static final Color MODEL_COLOR = new Color(0xff5599);
-    
-    private static final Model AXIS = Model.axis(10000);
-    private static final int THREADS_MAX = 8;
-    
     private Map<Model, Transform3D> models = new HashMap<>();
     
     private double scale = 1.0;
@@ -48,14 +42,41 @@ public class ContourPlotDisplay3D extends JPanel {
     private double mipmapBiasV = 0;
     
     private boolean drawFaces = true;
+    private boolean backFaceCulling = false;
+    private double lodTolerance = 1;
+    private boolean rayMarching = false;
     
     private boolean drawContours = true;
     private int contours = 20;
     private double contourOffset = 0;
+    private double contourWidth = 1;
     private Color contourColor = Color.BLACK;
     
     private Mipmapper image;
     
+    //Frames are rendered off the Event Dispatch Thread, a finished frame triggers a repaint that presents it
+    private final RenderLoop renderLoop = new RenderLoop(new RenderLoop.FrameListener() {
+        @Override
+        public void frameReady(RenderSettings settings) {
+            SwingUtilities.invokeLater(ContourPlotDisplay3D.this::repaint);
+        }
+        
+        @Override
+        public void frameCompleted(RenderSettings settings, String textureState) {
+            Consumer<String> log = frameLog;
+            if (log != null) {
+                log.accept(textureState);
+            }
+        }
+    });
+    //Told how the texture of every completed frame was found, on the render thread
+    private volatile Consumer<String> frameLog;
+    
+    //Settings of the last requested frame, repaints with equal settings reuse it
+    private RenderSettings frameSettings;
+    private long frameCacheHits = 0;
+    private long frameCacheMisses = 0;
+    
     public ContourPlotDisplay3D() {
         super();
     }
@@ -65,430 +86,78 @@ public class ContourPlotDisplay3D extends JPanel {
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         
-        List<Double> zBuffer = Collections.synchronizedList(new ArrayList<>());
-        for (int i = 0; i < getWidth() * getHeight(); i++) {
-            zBuffer.add(Double.POSITIVE_INFINITY);
-        }
-        
-        drawModel(g, AXIS, new Transform3D(), GRID_COLOR, false, zBuffer);
-        for (Model m : models.keySet()) {
-            Transform3D t = models.get(m);
-            drawModel(g, m, t, MODEL_COLOR, true, zBuffer);
-        }
-    }
-    
-    private void drawModel(Graphics g, Model model, Transform3D transform, Color color, boolean warp, List<Double> zBuffer) {
-        BufferedImage texture;
-        
-        if (cache == null || !cache.isValid()) {
-            texture = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
-            WritableRaster r = texture.getRaster();
-            int[] pixelVector = new int[20 * 20];
-            for (int i = 0; i < pixelVector.length; i++) {
-                pixelVector[i] = interpolate(interpolate(Color.BLUE, Color.RED, (i % 20) / 20.0), interpolate(Color.CYAN, Color.ORANGE, (i % 20) / 20.0), (i - i % 20) / 400.0).getRGB();
-                r.setDataElements(0, 0, 20, 20, pixelVector);
-            }
-            mipmapper = new Mipmapper(texture);
+        RenderSettings settings = createSettings();
+        if (settings.equals(frameSettings)) {
+            frameCacheHits++;
         }
         else {
-            if (image == null) {
-                TextureGenerator texGen = new TextureGenerator(cache, textureResolution, textureResolution);
-                texture = texGen.generateTexture();
-                mipmapper = new Mipmapper(texture);
-            }
-            else {
-                mipmapper = image;
-            }
+            frameCacheMisses++;
+            frameSettings = settings;
+            renderLoop.request(settings);
         }
         
-        //Draw polygons
-        ExecutorService executor = Executors.newFixedThreadPool(THREADS_MAX);
-        for (Polygon polygon : model.getPolygons()) {
-            executor.execute(() -> {
-                try {
-                    Polygon polygonT = polygon.applyTransform(transform);
-                    Point3D a = polygonT.a.copy();
-                    Point3D b = polygonT.b.copy();
-                    Point3D c = polygonT.c.copy();
-        
-                    if (isParallelMode()) {
-                        double l = getFactorL();
-                        double angle = getAngleA();
-                        double x;
-                        double y;
-            
-                        x = a.getX() + a.getZ() * (l * Math.cos(angle));
-                        y = a.getY() + a.getZ() * (l * Math.sin(angle));
-            
-                        a.setX(x);
-                        a.setY(y);
-            
-                        x = b.getX() + b.getZ() * (l * Math.cos(angle));
-                        y = b.getY() + b.getZ() * (l * Math.sin(angle));
-            
-                        b.setX(x);
-                        b.setY(y);
-            
-                        x = c.getX() + c.getZ() * (l * Math.cos(angle));
-                        y = c.getY() + c.getZ() * (l * Math.sin(angle));
-            
-                        c.setX(x);
-                        c.setY(y);
-                    } else {
-                        if (warp) {
-                            double d = getFactorD();
-                            double x;
-                            double y;
-                
-                            x = a.getX() / (1 + (Math.abs(a.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(a.getY()) * (isWarpY() ? 1 : 0) / d) + ((a.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                            y = a.getY() / (1 + (Math.abs(a.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(a.getY()) * (isWarpY() ? 1 : 0) / d) + ((a.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                
-                            a.setX(x);
-                            a.setY(y);
-                
-                            x = b.getX() / (1 + (Math.abs(b.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(b.getY()) * (isWarpY() ? 1 : 0) / d) + ((b.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                            y = b.getY() / (1 + (Math.abs(b.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(b.getY()) * (isWarpY() ? 1 : 0) / d) + ((b.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                
-                            b.setX(x);
-                            b.setY(y);
-                
-                            x = c.getX() / (1 + (Math.abs(c.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(c.getY()) * (isWarpY() ? 1 : 0) / d) + ((c.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                            y = c.getY() / (1 + (Math.abs(c.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(c.getY()) * (isWarpY() ? 1 : 0) / d) + ((c.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                
-                            c.setX(x);
-                            c.setY(y);
-                        }
-                    }
-        
-                    Polygon transformedPolygon = new Polygon(a, b, c);
-        
-                    drawPolygon(g, transformedPolygon, polygon, mipmapper, zBuffer);
-        
-                    if (showOutline) {
-                        synchronized (g) {
-                            g.setColor(color);
-                            g.drawLine(normX(a.getX()), normY(a.getY()), normX(b.getX()), normY(b.getY()));
-                            g.drawLine(normX(b.getX()), normY(b.getY()), normX(c.getX()), normY(c.getY()));
-                            g.drawLine(normX(c.getX()), normY(c.getY()), normX(a.getX()), normY(a.getY()));
-                        }
-                    }
-        
-                    //g.setColor(color);
-                    //g.drawLine(normX(a.getX()), normY(a.getY()), normX(b.getX()), normY(b.getY()));
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    e.printStackTrace();
-                }
-            });
-        }
-        executor.shutdown();
-        try {
-            executor.awaitTermination(60, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        //Draw edges
-        /*for (Pair<Integer, Integer> edge : model.getEdges()) {
-            try {
-                Point3D a = model.getVertices().get(edge.a).copy();
-                Point3D b = model.getVertices().get(edge.b).copy();
-            
-                Matrix am = a.toMatrix();
-                Matrix bm = b.toMatrix();
-            
-                am = am.multiply(Matrix.scaleMatrix3D(transform.scale.getX(), transform.scale.getY(), transform.scale.getZ()));
-                bm = bm.multiply(Matrix.scaleMatrix3D(transform.scale.getX(), transform.scale.getY(), transform.scale.getZ()));
-            
-                am = am.multiply(Matrix.rotationMatrix3D(transform.rotation.getX(), transform.rotation.getY(), transform.rotation.getZ()));
-                bm = bm.multiply(Matrix.rotationMatrix3D(transform.rotation.getX(), transform.rotation.getY(), transform.rotation.getZ()));
-            
-                am = am.multiply(Matrix.offsetMatrix3D(transform.offset.getX(), transform.offset.getY(), transform.offset.getZ()));
-                bm = bm.multiply(Matrix.offsetMatrix3D(transform.offset.getX(), transform.offset.getY(), transform.offset.getZ()));
-            
-                a.setX(am.get(0, 0));
-                a.setY(am.get(1, 0));
-                a.setZ(am.get(2, 0));
-            
-                b.setX(bm.get(0, 0));
-                b.setY(bm.get(1, 0));
-                b.setZ(bm.get(2, 0));
-            
-            
-                if (isParallelMode()) {
-                    double l = getFactorL();
-                    double angle = getAngleA();
-                    double x;
-                    double y;
-                
-                    x = a.getX() + a.getZ() * (l * Math.cos(angle));
-                    y = a.getY() + a.getZ() * (l * Math.sin(angle));
-                
-                    a.setX(x);
-                    a.setY(y);
-                
-                    x = b.getX() + b.getZ() * (l * Math.cos(angle));
-                    y = b.getY() + b.getZ() * (l * Math.sin(angle));
-                
-                    b.setX(x);
-                    b.setY(y);
-                }
-                else {
-                    if (warp) {
-                        double d = getFactorD();
-                        double x;
-                        double y;
-                    
-                        x = a.getX() / (1 + (Math.abs(a.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(a.getY()) * (isWarpY() ? 1 : 0) / d) + ((a.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                        y = a.getY() / (1 + (Math.abs(a.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(a.getY()) * (isWarpY() ? 1 : 0) / d) + ((a.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                    
-                        a.setX(x);
-                        a.setY(y);
-                    
-                        x = b.getX() / (1 + (Math.abs(b.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(b.getY()) * (isWarpY() ? 1 : 0) / d) + ((b.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                        y = b.getY() / (1 + (Math.abs(b.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(b.getY()) * (isWarpY() ? 1 : 0) / d) + ((b.getZ()) * (isWarpZ() ? 1 : 0) / d));
-                    
-                        b.setX(x);
-                        b.setY(y);
-                    }
-                }
-            
-                g.setColor(color);
-                g.drawLine(normX(a.getX()), normY(a.getY()), normX(b.getX()), normY(b.getY()));
-            }
-            catch (ArrayIndexOutOfBoundsException e) {
-                e.printStackTrace();
-            }
-        }*/
+        //Until the requested frame is done the previous one stays on screen
+        renderLoop.present(g, 0, 0, getWidth(), getHeight());
     }
     
-    private void drawPolygon(Graphics g, Polygon p, Mipmapper mm, List<Double> zBuffer) {
-        drawPolygon(g, p, p, mm, zBuffer);
+    //Snapshot of everything the frame depends on
+    public RenderSettings createSettings() {
+        RenderSettings settings = new RenderSettings();
+        for (Map.Entry<Model, Transform3D> entry : models.entrySet()) {
+            settings.addModel(entry.getKey(), entry.getValue());
+        }
+        settings.setProjection(createProjection());
+        settings.setCache(cache);
+        settings.setImage(image);
+        settings.setTextureResolution(textureResolution);
+        settings.setFiltering(filtering);
+        settings.setUseMipmap(useMipmap);
+        settings.setMipmapBiasU(mipmapBiasU);
+        settings.setMipmapBiasV(mipmapBiasV);
+        settings.setDrawFaces(drawFaces);
+        settings.setShowOutline(showOutline);
+        settings.setBackFaceCulling(backFaceCulling);
+        settings.setLodTolerance(lodTolerance);
+        settings.setRayMarching(rayMarching);
+        settings.setBackground(getBackground().getRGB());
+        settings.setDrawContours(drawContours);
+        settings.setContours(contours);
+        settings.setContourOffset(contourOffset);
+        settings.setContourWidth(contourWidth);
+        settings.setContourColor(contourColor);
+        return settings;
     }
     
-    private void drawPolygon(Graphics g, Polygon p, Polygon orig, Mipmapper mm, List<Double> zBuffer) {
-        synchronized (p) {
-            if ((normX(p.a.getX()) >= 0 && normX(p.a.getX()) < getWidth() && normY(p.a.getY()) >= 0 && normY(p.a.getY()) < getHeight()) || (normX(p.b.getX()) >= 0 && normX(p.b.getX()) < getWidth() && normY(p.b.getY()) >= 0 && normY(p.b.getY()) < getHeight()) || (normX(p.c.getX()) >= 0 && normX(p.c.getX()) < getWidth() && normY(p.c.getY()) >= 0 && normY(p.c.getY()) < getHeight())) {
-    
-                if (drawFaces || drawContours) {
-                    //System.out.println("Polygon: " + p.a + p.b + p.c);
-                    Polygon proj = new Polygon(p.a.copy(), p.b.copy(), p.c.copy());
-                    proj.a.setZ(0);
-                    proj.b.setZ(0);
-                    proj.c.setZ(0);
-    
-                    int minX = (int) Math.floor(Math.min(Math.min(p.a.getX(), p.b.getX()), p.c.getX())) - 1;
-                    int minY = (int) Math.floor(Math.min(Math.min(p.a.getY(), p.b.getY()), p.c.getY())) - 1;
-                    int maxX = (int) Math.ceil(Math.max(Math.max(p.a.getX(), p.b.getX()), p.c.getX())) + 1;
-                    int maxY = (int) Math.ceil(Math.max(Math.max(p.a.getY(), p.b.getY()), p.c.getY())) + 1;
-    
-                    List<List<Boolean>> filteredContourData = new ArrayList<>(maxX - minX + 1);
-                    //Gather contour data
-                    if (drawContours && cache != null) {
-                        //Initialize array
-                        for (int i = 0; i < maxX - minX + 1; i++) {
-                            filteredContourData.add(new ArrayList<>(maxY - minY + 1));
-                            for (int j = 0; j < maxY - minY + 1; j++) {
-                                filteredContourData.get(i).add(false);
-                            }
-                        }
-                        //For each contour level
-                        for (int k = 0; k < contours; k++) {
-                            List<List<Boolean>> contourData = new ArrayList<>(maxX - minX + 1);
-                            for (int i = 0; i < maxX - minX + 1; i++) {
-                                contourData.add(new ArrayList<>(maxY - minY + 1));
-                                for (int j = 0; j < maxY - minY + 1; j++) {
-                                    contourData.get(i).add(null);
-                                }
-                            }
-                            //Map of all points higher/lower then the target
-                            int finalK = k;
-                            rasterizeTriangle(p, (x, y) -> {
-                                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
-                                    Point3D bary = p.barycentric(new Point3D(x, y, 0));
-                                    double val = orig.a.getY() * bary.getX() + orig.b.getY() * bary.getY() + orig.c.getY() * bary.getZ();
-                                    //System.out.println(cache.getContourCutoffValueNormalized(i, contours, contourOffset) + "; " + val);
-                                    try {
-                                        contourData.get(x - minX).set(y - minY, val >= cache.getContourCutoffValueNormalized(finalK, contours, contourOffset));
-                                    } catch (ArrayIndexOutOfBoundsException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            });
-            
-                            //Edge detection filter
-                            for (int i = 0; i < maxX - minX + 1; i++) {
-                                for (int j = 0; j < maxY - minY + 1; j++) {
-                    
-                                    Boolean tc = contourData.get(Math.max(Math.min(i, maxX - minX), 0)).get(Math.max(Math.min(j + 1, maxY - minY), 0));
-                    
-                                    Boolean cl = contourData.get(Math.max(Math.min(i - 1, maxX - minX), 0)).get(Math.max(Math.min(j, maxY - minY), 0));
-                                    Boolean cc = contourData.get(Math.max(Math.min(i, maxX - minX), 0)).get(Math.max(Math.min(j, maxY - minY), 0));
-                                    Boolean cr = contourData.get(Math.max(Math.min(i + 1, maxX - minX), 0)).get(Math.max(Math.min(j, maxY - minY), 0));
-                    
-                                    Boolean bc = contourData.get(Math.max(Math.min(i, maxX - minX), 0)).get(Math.max(Math.min(j - 1, maxY - minY), 0));
-                    
-                                    boolean res = (cc != null && cc) && ((tc != null && !tc) || (cl != null && !cl) || (cr != null && !cr) || (bc != null && !bc));
-                                    if (res) {
-                                        filteredContourData.get(i).set(j, true);
-                                    }
-                                }
-                            }
-                        }
-                    }
-    
+    //Forces the next repaint to render, for changes the settings can not see such as a model edited in place
+    public void invalidateFrame() {
+        frameSettings = null;
+    }
     
-                    //System.out.println("minX: " + minX + ", minY: " + minY + ", maxX: " + maxX + ", maxY: " + maxY);
-                    //g.setColor(Color.CYAN);
-                    //rasterizeTriangle(p, (x, y) -> g.drawRect(normX(x), normY(y), 0, 0));
-                    //for (int i = minY; i < maxY; i++) {
-                    //for (int j = minX; j < maxX; j++) {
-                    rasterizeTriangle(p, (j, i) -> {
-        
-                        Point3D point = new Point3D(j, i, 0);
-        
-                        Point3D barycentric = proj.barycentric(point);
-                        double z = barycentric.getX() * p.a.getZ() + barycentric.getY() * p.b.getZ() + barycentric.getZ() * p.c.getZ();
-                        synchronized (zBuffer) {
-                            try {
-                                if (normX(j) >= 0 && normX(j) < getWidth() && normY(i) >= 0 && normY(i) < getHeight() && z < zBuffer.get(normY(i) * getWidth() + normX(j))) {
-                                    zBuffer.set(normY(i) * getWidth() + normX(j), z);
-                                } else {
-                                    return;
-                                }
-                            } catch (ArrayIndexOutOfBoundsException e) {
-                                e.printStackTrace();
-                                return;
-                            }
-                        }
-                        PointDouble uv = proj.uv(point);
-                        //System.out.println("UV: " + uv.getX() + ":" +uv.getY());
-                        //Offset UVs
-                        PointDouble uvl = proj.uv(new Point3D(j - 1, i, 0));
-                        PointDouble uvr = proj.uv(new Point3D(j + 1, i, 0));
-                        PointDouble uvt = proj.uv(new Point3D(j, i - 1, 0));
-                        PointDouble uvb = proj.uv(new Point3D(j, i + 1, 0));
-        
-                        //UV derivative
-                        double dud = Math.sqrt(Math.pow((Math.abs(uv.getX() - uvl.getX()) + Math.abs(uv.getX() - uvr.getX())) / 2, 2) + Math.pow((Math.abs(uv.getX() - uvt.getX()) + Math.abs(uv.getX() - uvb.getX())) / 2, 2)) * mm.getMipmap(0, 0).getWidth();
-                        double dvd = Math.sqrt(Math.pow((Math.abs(uv.getY() - uvl.getY()) + Math.abs(uv.getY() - uvr.getY())) / 2, 2) + Math.pow((Math.abs(uv.getY() - uvt.getY()) + Math.abs(uv.getY() - uvb.getY())) / 2, 2)) * mm.getMipmap(0, 0).getHeight();
-                        double mmU = Math.max(0, (Math.log(dud) / Math.log(2)) + mipmapBiasU);
-                        double mmV = Math.max(0, (Math.log(dvd) / Math.log(2)) + mipmapBiasV);
-                        //System.out.println("du/dx: " + dud + ", dv/dy: " + dvd + ", mmU: " + mmU + ", mmV: " + mmV);
-        
-                        //Paint pixel
-                        Color c;
-                        if (drawContours && filteredContourData.get(j - minX).get(i - minY)) {
-                            c = contourColor;
-                        } else {
-                            if (drawFaces) {
-                                c = mm.getColor(uv.getX(), 1 - uv.getY(), useMipmap ? mmU : 0, useMipmap ? mmV : 0, filtering);
-                            }
-                            else {
-                                c = getBackground();
-                            }
-                        }
-                        synchronized (g) {
-                            g.setColor(c);
-                            g.drawRect(normX(j), normY(i), 0, 0);
-                        }
-        
-                    });
-                }
-                //}
-                //}
-                //g.setColor(Color.CYAN);
-                //rasterizeTriangle(p, (x, y) -> g.drawRect(normX(x), normY(y), 0, 0));
-                if (showOutline) {
-                    g.setColor(MODEL_COLOR);
-                    g.drawLine(normX(p.a.getX()), normY(p.a.getY()), normX(p.b.getX()), normY(p.b.getY()));
-                    g.drawLine(normX(p.b.getX()), normY(p.b.getY()), normX(p.c.getX()), normY(p.c.getY()));
-                    g.drawLine(normX(p.c.getX()), normY(p.c.getY()), normX(p.a.getX()), normY(p.a.getY()));
-                }
-            }
-        }
+    public long getFrameCacheHits() {
+        return frameCacheHits;
     }
     
-    private void rasterizeBottomFlat(Point3D a, Point3D b, Point3D c, BiConsumer<Integer, Integer> drawFunction) {
-        List<Point3D> points = new ArrayList<>(Arrays.asList(a, b, c));
-        int topI = (a.getY() >= b.getY() && a.getY() >= c.getY()) ? 0 : (b.getY() >= c.getY() ? 1 : 2);
-        Point3D top = points.get(topI);
-        points.remove(topI);
-        
-        int leftI = points.get(0).getX() <= points.get(1).getX() ? 0 : 1;
-        
-        Point3D left = points.get(leftI);
-        points.remove(leftI);
-        Point3D right = points.get(0);
-        
-        double invSlope1 = (Math.round(left.getX()) - Math.round(top.getX())) / (double)(Math.round(left.getY()) - Math.round(top.getY()));
-        double invSlope2 = (Math.round(right.getX()) - Math.round(top.getX())) / (double)(Math.round(right.getY()) - Math.round(top.getY()));
-        
-        double x1 = left.getX();
-        double x2 = right.getX();
-        
-        for (int scanY = (int)Math.round(left.getY()); scanY <= (int)Math.round(top.getY()); scanY++) {
-            for (int i = (int)Math.round(x1); i <= (int)Math.round(x2); i++) {
-                drawFunction.accept((int)Math.round(i), (int)Math.round(scanY));
-            }
-            x1 += invSlope1;
-            x2 += invSlope2;
-        }
+    public long getFrameCacheMisses() {
+        return frameCacheMisses;
     }
     
-    private void rasterizeTopFlat(Point3D a, Point3D b, Point3D c, BiConsumer<Integer, Integer> drawFunction) {
-        List<Point3D> points = new ArrayList<>(Arrays.asList(a, b, c));
-        int botI = (a.getY() <= b.getY() && a.getY() <= c.getY()) ? 0 : (b.getY() <= c.getY() ? 1 : 2);
-        Point3D bot = points.get(botI);
-        points.remove(botI);
-        
-        int leftI = points.get(0).getX() <= points.get(1).getX() ? 0 : 1;
-        
-        Point3D left = points.get(leftI);
-        points.remove(leftI);
-        Point3D right = points.get(0);
+    public RenderLoop getRenderLoop() {
+        return renderLoop;
+    }
     
-        double invSlope1 = (Math.round(left.getX()) - Math.round(bot.getX())) / (double)(Math.round(left.getY()) - Math.round(bot.getY()));
-        double invSlope2 = (Math.round(right.getX()) - Math.round(bot.getX())) / (double)(Math.round(right.getY()) - Math.round(bot.getY()));
-        
-        double x1 = left.getX();
-        double x2 = right.getX();
-        
-        for (int scanY = (int)Math.round(left.getY()); scanY >= (int)Math.round(bot.getY()); scanY--) {
-            for (int i = (int)Math.round(x1); i <= (int)Math.round(x2); i++) {
-                drawFunction.accept((int)Math.round(i), (int)Math.round(scanY));
-            }
-            x1 -= invSlope1;
-            x2 -= invSlope2;
-        }
+    public void setFrameLog(Consumer<String> frameLog) {
+        this.frameLog = frameLog;
     }
     
-    private void rasterizeTriangle(Polygon poly, BiConsumer<Integer, Integer> drawFunction) {
-        List<Point3D> points = new ArrayList<>(Arrays.asList(poly.a, poly.b, poly.c));
-        points.sort(Comparator.comparingDouble(p -> -p.getY()));
-        
-        if (points.get(1).getY() == points.get(2).getY()) {
-            rasterizeBottomFlat(points.get(0), points.get(1), points.get(2), drawFunction);
-        }
-        
-        if(points.get(0).getY() == points.get(1).getY()) {
-            rasterizeTopFlat(points.get(2), points.get(1), points.get(0), drawFunction);
-        }
-        double alpha = (points.get(1).getY() - points.get(2).getY()) / (points.get(0).getY() - points.get(2).getY());
-        
-        double x = points.get(0).getX() * alpha + points.get(2).getX() * (1 - alpha);
-        double z = points.get(0).getZ() * alpha + points.get(2).getZ() * (1 - alpha);
-        double u = points.get(0).getU() * alpha + points.get(2).getU() * (1 - alpha);
-        double v = points.get(0).getV() * alpha + points.get(2).getV() * (1 - alpha);
-        
-        Point3D d = new Point3D(x, points.get(1).getY(), z, u, v);
-        rasterizeBottomFlat(points.get(0), points.get(1), d, drawFunction);
-        rasterizeTopFlat(points.get(2), points.get(1), d, drawFunction);
+    private Projection createProjection() {
+        return new Projection(getScale(), getWidth(), getHeight(), isParallelMode(), getAngleA(), getFactorL(), getFactorD(), isWarpX(), isWarpY(), isWarpZ());
     }
     
     private static double interpolate(double a, double b, double alpha) {
         return b * alpha + a * (1 - alpha);
     }
     
-    private static Color interpolate(Color c1, Color c2, double alpha) {
+    static Color interpolate(Color c1, Color c2, double alpha) {
         double gamma = 2.2;
         int r = (int) Math.round(255 * Math.pow(Math.pow(c2.getRed() / 255.0, gamma) * alpha + Math.pow(c1.getRed() / 255.0, gamma) * (1 - alpha), 1 / gamma));
         int g = (int) Math.round(255 * Math.pow(Math.pow(c2.getGreen() / 255.0, gamma) * alpha + Math.pow(c1.getGreen() / 255.0, gamma) * (1 - alpha), 1 / gamma));
@@ -498,6 +167,14 @@ public class ContourPlotDisplay3D extends JPanel {
     }
     
     
+    //Continuous screen coordinates, pixel (x, y) covers [x, x + 1) x [y, y + 1)
+    public double screenX(double x) {
+        return (x / getScale()) + 0.5 * getWidth() + 0.5;
+    }
+    public double screenY(double y) {
+        return 0.5 * getHeight() - (y / getScale()) + 0.5;
+    }
+    
     public int normX(double x) {
         return (int) Math.round((x / getScale()) + 0.5 * getWidth());
     }
@@ -621,6 +298,14 @@ public class ContourPlotDisplay3D extends JPanel {
         this.contourOffset = contourOffset;
     }
     
+    public double getContourWidth() {
+        return contourWidth;
+    }
+    
+    public void setContourWidth(double contourWidth) {
+        this.contourWidth = contourWidth;
+    }
+    
     public Color getContourColor() {
         return contourColor;
     }
@@ -647,10 +332,41 @@ public class ContourPlotDisplay3D extends JPanel {
         this.drawFaces = drawFaces;
     }
     
+    public boolean isBackFaceCulling() {
+        return backFaceCulling;
+    }
+    
+    public void setBackFaceCulling(boolean backFaceCulling) {
+        this.backFaceCulling = backFaceCulling;
+    }
+    
+    public double getLodTolerance() {
+        return lodTolerance;
+    }
+    
+    public void setLodTolerance(double lodTolerance) {
+        this.lodTolerance = lodTolerance;
+    }
+    
+    public boolean isRayMarching() {
+        return rayMarching;
+    }
+    
+    public void setRayMarching(boolean rayMarching) {
+        this.rayMarching = rayMarching;
+    }
+    
     public static class FunctionCache {
+        //Grid cells per side of a model chunk
+        public static final int CHUNK_SIZE = 16;
+        
         private BiFunction<Double, Double, Double> function;
-        private ArrayList<ArrayList<Double>> data;
+        //Samples row by row, (resolution + 1) per row
+        private double[] data;
+        private TerrainLod lod;
+        private HeightPyramid heightPyramid;
         private Model model;
+        private Map<Integer, Model> coarseModels = new HashMap<>();
         private int resolution;
         private double lowerX;
         private double upperX;
@@ -661,6 +377,12 @@ public class ContourPlotDisplay3D extends JPanel {
         private boolean valid;
         
         public FunctionCache(BiFunction<Double, Double, Double> function, int resolution, double lowerX, double upperX, double lowerY, double upperY) {
+            this(function, resolution, lowerX, upperX, lowerY, upperY, () -> false, progress -> {});
+        }
+        
+        //Sampling stops early with a CancellationException once cancelled returns true,
+        //progress receives the sampled fraction of the grid from the sampling threads
+        public FunctionCache(BiFunction<Double, Double, Double> function, int resolution, double lowerX, double upperX, double lowerY, double upperY, BooleanSupplier cancelled, DoubleConsumer progress) {
             if (resolution < 1 || function == null) {
                 throw new IllegalArgumentException();
             }
@@ -677,18 +399,37 @@ public class ContourPlotDisplay3D extends JPanel {
             this.upperY = upperY;
             this.valid = true;
             
-            data = new ArrayList<>();
-            for (int i = 0; i <= resolution; i++) {
-                data.add(new ArrayList<>());
-                for (int j = 0; j <= resolution; j++) {
-                    data.get(i).add(Double.NaN);
-                }
+            data = new double[(resolution + 1) * (resolution + 1)];
+            Arrays.fill(data, Double.NaN);
+            
+            //Rows are sampled as background work in the shared scheduler
+            List<Runnable> tasks = new ArrayList<>();
+            AtomicInteger rowsDone = new AtomicInteger();
+            for (int row = 0; row <= resolution; row++) {
+                int i = row;
+                tasks.add(() -> {
+                    if (cancelled.getAsBoolean()) {
+                        return;
+                    }
+                    for (int j = 0; j <= resolution; j++) {
+                        set(function.apply(lowerX + dx * j, lowerY + dy * i), i, j);
+                    }
+                    progress.accept(rowsDone.incrementAndGet() / (double) (resolution + 1));
+                });
+            }
+            try {
+                RenderScheduler.getInstance().invokeAll(RenderScheduler.Priority.BACKGROUND, tasks);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Terrain sampling interrupted");
+            }
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
             }
             
             for (int i = 0; i <= resolution; i++) {
                 for (int j = 0; j <= resolution; j++) {
-                    double val = function.apply(lowerX + dx * j, lowerY + dy * i);
-                    set(val, i, j);
+                    double val = get(i, j);
                     if ((Double.isNaN(min) && !Double.isNaN(val)) || val < min) {
                         min = val;
                     }
@@ -730,14 +471,31 @@ public class ContourPlotDisplay3D extends JPanel {
             return -1 + (index + offset + 0.5) * dz;
         }
         
+        //Distance from a normalized value to the nearest normalized contour level
+        public double getContourDistanceNormalized(double value, int totalContours, double offset) {
+            double dz = 2 / (double)totalContours;
+            double index = Math.rint((value + 1) / dz - offset - 0.5);
+            index = Math.max(0, Math.min(totalContours - 1, index));
+            return Math.abs(value - (-1 + (index + offset + 0.5) * dz));
+        }
+        
         public Model generateModel() {
+            return generateModel(resolution);
+        }
+        
+        //Builds the mesh with the given number of cells per side, heights between samples are interpolated
+        public Model generateModel(int resolution) {
             int dataPoints = (resolution + 1) * (resolution + 1);
             int rowSize = resolution + 1;
             int oddRowSize = resolution + 2;
             
             ArrayList<Point3D> vertices = new ArrayList<>(dataPoints);
             ArrayList<Pair<Integer, Integer>> edges = new ArrayList<>(2 * dataPoints);
-            ArrayList<Polygon> polygons = new ArrayList<>(2 * dataPoints);
+            int[] triangles = new int[6 * dataPoints];
+            int[] triangleChunks = new int[2 * dataPoints];
+            int triangleCount = 0;
+            int chunksX = (resolution + 1) / CHUNK_SIZE + 1;
+            int chunksY = resolution / CHUNK_SIZE + 1;
             double deltaX = (upperX - lowerX) / (double)resolution;
             double deltaY = (upperY - lowerY) / (double)resolution;
             
@@ -760,6 +518,7 @@ public class ContourPlotDisplay3D extends JPanel {
             for (int i = 0; i <= resolution; i++) {
                 for (int j = 0; j < (i % 2 == 0 ? rowSize : oddRowSize); j++) {
                     int index = ((i + 1) / 2) * (rowSize) + (i / 2) * oddRowSize + j;
+                    int chunk = (i / CHUNK_SIZE) * chunksX + j / CHUNK_SIZE;
                     //int index = i * (rowSize + 1) + j;
                     if (i % 2 == 0) {
                         if (j < rowSize - 1) {
@@ -771,12 +530,12 @@ public class ContourPlotDisplay3D extends JPanel {
                             if (j < rowSize - 1) {
                                 
                                 //Add polygons
-                                polygons.add(new Polygon(vertices.get(index), vertices.get(index + rowSize), vertices.get(index + rowSize + 1)));
-                                polygons.add(new Polygon(vertices.get(index + rowSize + 1), vertices.get(index + 1), vertices.get(index)));
+                                triangleCount = addTriangle(triangles, triangleChunks, triangleCount, chunk, index, index + rowSize, index + rowSize + 1);
+                                triangleCount = addTriangle(triangles, triangleChunks, triangleCount, chunk, index + rowSize + 1, index + 1, index);
                             }
                             else {
                                 if (j == rowSize - 1) {
-                                    polygons.add(new Polygon(vertices.get(index), vertices.get(index + rowSize), vertices.get(index + rowSize + 1)));
+                                    triangleCount = addTriangle(triangles, triangleChunks, triangleCount, chunk, index, index + rowSize, index + rowSize + 1);
                                 }
                             }
                         }
@@ -792,12 +551,12 @@ public class ContourPlotDisplay3D extends JPanel {
                             if (j < oddRowSize - 1) {
                                 edges.add(new Pair<>(index, index + oddRowSize));
                                 if (j == 0) {
-                                    polygons.add(new Polygon(vertices.get(index), vertices.get(index + oddRowSize), vertices.get(index + 1)));
+                                    triangleCount = addTriangle(triangles, triangleChunks, triangleCount, chunk, index, index + oddRowSize, index + 1);
                                 }
                                 else {
                                     //Add polygons
-                                    polygons.add(new Polygon(vertices.get(index), vertices.get(index + oddRowSize - 1), vertices.get(index + oddRowSize)));
-                                    polygons.add(new Polygon(vertices.get(index), vertices.get(index + oddRowSize), vertices.get(index + 1)));
+                                    triangleCount = addTriangle(triangles, triangleChunks, triangleCount, chunk, index, index + oddRowSize - 1, index + oddRowSize);
+                                    triangleCount = addTriangle(triangles, triangleChunks, triangleCount, chunk, index, index + oddRowSize, index + 1);
                                 }
                             } else {
                                 if (j == oddRowSize - 1) {
@@ -809,7 +568,29 @@ public class ContourPlotDisplay3D extends JPanel {
                     
                 }
             }
-            return new Model(vertices, edges, polygons);
+            
+            //Sort triangles by chunk, keeping their order inside each chunk
+            int[] chunkOffsets = new int[chunksX * chunksY + 1];
+            for (int t = 0; t < triangleCount; t++) {
+                chunkOffsets[triangleChunks[t] + 1]++;
+            }
+            for (int c = 1; c < chunkOffsets.length; c++) {
+                chunkOffsets[c] += chunkOffsets[c - 1];
+            }
+            int[] sorted = new int[3 * triangleCount];
+            int[] fill = Arrays.copyOf(chunkOffsets, chunkOffsets.length - 1);
+            for (int t = 0; t < triangleCount; t++) {
+                System.arraycopy(triangles, 3 * t, sorted, 3 * fill[triangleChunks[t]]++, 3);
+            }
+            return new Model(vertices, edges, sorted, chunkOffsets);
+        }
+        
+        private static int addTriangle(int[] triangles, int[] triangleChunks, int count, int chunk, int a, int b, int c) {
+            triangleChunks[count] = chunk;
+            triangles[3 * count] = a;
+            triangles[3 * count + 1] = b;
+            triangles[3 * count + 2] = c;
+            return count + 1;
         }
         
         private double clampX(double x) {
@@ -821,11 +602,21 @@ public class ContourPlotDisplay3D extends JPanel {
         }
         
         private double get(int row, int col) {
-            return data.get(row).get(col);
+            return data[row * (resolution + 1) + col];
         }
         
         private void set(double value, int row, int col) {
-            data.get(row).set(col, value);
+            data[row * (resolution + 1) + col] = value;
+        }
+        
+        //Sampled value at a grid point, rows follow y and columns follow x
+        public double getSample(int row, int col) {
+            return get(row, col);
+        }
+        
+        //Sample scaled to the -1 to 1 height range of the terrain model
+        public double getModelHeight(int row, int col) {
+            return 2.0 * (get(row, col) - min) / (max - min) - 1;
         }
         
         public BiFunction<Double, Double, Double> getFunction() {
@@ -860,13 +651,44 @@ public class ContourPlotDisplay3D extends JPanel {
             return max;
         }
         
-        public Model getModel() {
+        //The terrain model picks its mesh from the levels of detail, see TerrainLod
+        public synchronized Model getModel() {
             if (model == null) {
-                model = generateModel();
+                model = new Model(getLod());
             }
             return model;
         }
         
+        public synchronized TerrainLod getLod() {
+            if (lod == null) {
+                lod = new TerrainLod(this, CHUNK_SIZE);
+            }
+            return lod;
+        }
+        
+        public synchronized HeightPyramid getHeightPyramid() {
+            if (heightPyramid == null) {
+                heightPyramid = new HeightPyramid(this);
+            }
+            return heightPyramid;
+        }
+        
+        public synchronized boolean hasModel() {
+            return model != null;
+        }
+        
+        public synchronized boolean isModel(Model model) {
+            return model != null && this.model == model;
+        }
+        
+        //Model with at most maxResolution cells per side, coarse models are kept for reuse
+        public synchronized Model getModel(int maxResolution) {
+            if (maxResolution >= resolution) {
+                return getModel();
+            }
+            return coarseModels.computeIfAbsent(Math.max(1, maxResolution), this::generateModel);
+        }
+        
         public boolean isValid() {
             return valid;
         }
@@ -947,105 +769,124 @@ public class ContourPlotDisplay3D extends JPanel {
                 rasterData[i] = Color.BLACK.getRGB();
             }
             
-            Color color;
-            
             double max = Math.min(upperZ, cache.max);
             double min = Math.max(lowerZ, cache.min);
             double dz = (max - min) / (double)contours;
-            boolean matched;
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    PointDouble in = graphToValue(new PointDouble(i, j));
-                    double val = cache.get(in.getX(), in.getY());
-                    matched = false;
-                    if (alternateContours && contours > 0) {
-                        for (int k = 0; k <= contours; k++) {
-                            if (val >= min + (k - 0.5 * contourWidth + contourOffset + 0.5) * dz && val <= min + (k + 0.5 * contourWidth + contourOffset + 0.5) * dz) {
-                                matched = true;
-                                break;
+            List<Runnable> tasks = new ArrayList<>();
+            for (int column = 0; column < width; column++) {
+                int i = column;
+                tasks.add(() -> {
+                    Color color;
+                    boolean matched;
+                    for (int j = 0; j < height; j++) {
+                        PointDouble in = graphToValue(new PointDouble(i, j));
+                        double val = cache.get(in.getX(), in.getY());
+                        matched = false;
+                        if (alternateContours && contours > 0) {
+                            for (int k = 0; k <= contours; k++) {
+                                if (val >= min + (k - 0.5 * contourWidth + contourOffset + 0.5) * dz && val <= min + (k + 0.5 * contourWidth + contourOffset + 0.5) * dz) {
+                                    matched = true;
+                                    break;
+                                }
                             }
                         }
+                        if (matched) {
+                            color = CONTOUR_COLOR;
+                        }
+                        else {
+                            color = interpolate(LOW_COLOR, HIGH_COLOR, Math.min(Math.max((val - min) / (max - min), 0), 1));
+                        }
+                        
+                        rasterData[j * width + i] = color.getRGB();
+                    /*val = new PointDouble(val.getX(), op.applyAsDouble(val.getX()));
+                    val = valueToGraph(val);
+                    if (i != 0) {
+                        g.drawLine(MARGIN_X + i - 1, prev, (int) Math.round(val.getX()), (int) Math.round(val.getY()));
                     }
-                    if (matched) {
-                        color = CONTOUR_COLOR;
-                    }
-                    else {
-                        color = interpolate(LOW_COLOR, HIGH_COLOR, Math.min(Math.max((val - min) / (max - min), 0), 1));
+                    prev = (int) Math.round(val.getY());*/
+                
                     }
-                    
-                    rasterData[j * width + i] = color.getRGB();
-                /*val = new PointDouble(val.getX(), op.applyAsDouble(val.getX()));
-                val = valueToGraph(val);
-                if (i != 0) {
-                    g.drawLine(MARGIN_X + i - 1, prev, (int) Math.round(val.getX()), (int) Math.round(val.getY()));
-                }
-                prev = (int) Math.round(val.getY());*/
-            
-                }
+                });
             }
+            runAll(tasks);
             //Draw contours
             if (!alternateContours) {
-                for (int k = 0; k < contours; k++) {
-                    double target = min + (k + contourOffset + 0.5) * dz;
-            
-                    //Map of all points higher/lower then the target
-                    ArrayList<ArrayList<Boolean>> data = new ArrayList<>(width);
-                    for (int i = 0; i < width; i++) {
-                        data.add(new ArrayList<>(height));
-                        for (int j = 0; j < height; j++) {
-                            PointDouble in = graphToValue(new PointDouble(i, j));
-                            double val = cache.get(in.getX(), in.getY());
-                            data.get(i).add(val > target);
-                        }
-                    }
-            
-                    //Edge detection filter
-                    ArrayList<ArrayList<Boolean>> filteredData = new ArrayList<>(width);
-                    for (int i = 0; i < width; i++) {
-                        filteredData.add(new ArrayList<>(height));
-                        for (int j = 0; j < height; j++) {
-                            boolean tl = data.get(Math.max(Math.min(i - 1, width - 1), 0)).get(Math.max(Math.min(j + 1, height - 1), 0));
-                            boolean tc = data.get(Math.max(Math.min(i, width - 1), 0)).get(Math.max(Math.min(j + 1, height - 1), 0));
-                            boolean tr = data.get(Math.max(Math.min(i + 1, width - 1), 0)).get(Math.max(Math.min(j + 1, height - 1), 0));
-                    
-                            boolean cl = data.get(Math.max(Math.min(i - 1, width - 1), 0)).get(Math.max(Math.min(j, height - 1), 0));
-                            boolean cc = data.get(Math.max(Math.min(i, width - 1), 0)).get(Math.max(Math.min(j, height - 1), 0));
-                            boolean ct = data.get(Math.max(Math.min(i + 1, width - 1), 0)).get(Math.max(Math.min(j, height - 1), 0));
-                    
-                            boolean bl = data.get(Math.max(Math.min(i - 1, width - 1), 0)).get(Math.max(Math.min(j - 1, height - 1), 0));
-                            boolean bc = data.get(Math.max(Math.min(i, width - 1), 0)).get(Math.max(Math.min(j - 1, height - 1), 0));
-                            boolean br = data.get(Math.max(Math.min(i + 1, width - 1), 0)).get(Math.max(Math.min(j - 1, height - 1), 0));
-                    
-                            boolean res;
-                            if (contourWidth > 0.5) {
-                                res = (cc && (!tl || !tc || !tr || !cl || !ct || !bl || !bc || !br)) || (!cc && (tl || tc || tr || cl || ct || bl || bc || br));
+                tasks.clear();
+                for (int level = 0; level < contours; level++) {
+                    int k = level;
+                    tasks.add(() -> {
+                        Color color;
+                        double target = min + (k + contourOffset + 0.5) * dz;
+                
+                        //Map of all points higher/lower then the target
+                        ArrayList<ArrayList<Boolean>> data = new ArrayList<>(width);
+                        for (int i = 0; i < width; i++) {
+                            data.add(new ArrayList<>(height));
+                            for (int j = 0; j < height; j++) {
+                                PointDouble in = graphToValue(new PointDouble(i, j));
+                                double val = cache.get(in.getX(), in.getY());
+                                data.get(i).add(val > target);
                             }
-                            else {
-                                if (contourWidth > 0.25) {
-                                    res = (cc && (!tc || !cl || !ct || !bc)) || (!cc && (tc || cl || ct || bc));
+                        }
+                
+                        //Edge detection filter
+                        ArrayList<ArrayList<Boolean>> filteredData = new ArrayList<>(width);
+                        for (int i = 0; i < width; i++) {
+                            filteredData.add(new ArrayList<>(height));
+                            for (int j = 0; j < height; j++) {
+                                boolean tl = data.get(Math.max(Math.min(i - 1, width - 1), 0)).get(Math.max(Math.min(j + 1, height - 1), 0));
+                                boolean tc = data.get(Math.max(Math.min(i, width - 1), 0)).get(Math.max(Math.min(j + 1, height - 1), 0));
+                                boolean tr = data.get(Math.max(Math.min(i + 1, width - 1), 0)).get(Math.max(Math.min(j + 1, height - 1), 0));
+                        
+                                boolean cl = data.get(Math.max(Math.min(i - 1, width - 1), 0)).get(Math.max(Math.min(j, height - 1), 0));
+                                boolean cc = data.get(Math.max(Math.min(i, width - 1), 0)).get(Math.max(Math.min(j, height - 1), 0));
+                                boolean ct = data.get(Math.max(Math.min(i + 1, width - 1), 0)).get(Math.max(Math.min(j, height - 1), 0));
+                        
+                                boolean bl = data.get(Math.max(Math.min(i - 1, width - 1), 0)).get(Math.max(Math.min(j - 1, height - 1), 0));
+                                boolean bc = data.get(Math.max(Math.min(i, width - 1), 0)).get(Math.max(Math.min(j - 1, height - 1), 0));
+                                boolean br = data.get(Math.max(Math.min(i + 1, width - 1), 0)).get(Math.max(Math.min(j - 1, height - 1), 0));
+                        
+                                boolean res;
+                                if (contourWidth > 0.5) {
+                                    res = (cc && (!tl || !tc || !tr || !cl || !ct || !bl || !bc || !br)) || (!cc && (tl || tc || tr || cl || ct || bl || bc || br));
                                 }
                                 else {
-                                    res = cc && (!tc || !cl || !ct || !bc);
+                                    if (contourWidth > 0.25) {
+                                        res = (cc && (!tc || !cl || !ct || !bc)) || (!cc && (tc || cl || ct || bc));
+                                    }
+                                    else {
+                                        res = cc && (!tc || !cl || !ct || !bc);
+                                    }
                                 }
+                                filteredData.get(i).add(res);
                             }
-                            filteredData.get(i).add(res);
                         }
-                    }
-            
-                    //Draw contour
-                    color = CONTOUR_COLOR;
-                    for (int i = 0; i < height; i++) {
-                        for (int j = 0; j < width; j++) {
-                            if (filteredData.get(j).get(i)) {
-                                rasterData[i * width + j] = color.getRGB();
+                
+                        //Draw contour
+                        color = CONTOUR_COLOR;
+                        for (int i = 0; i < height; i++) {
+                            for (int j = 0; j < width; j++) {
+                                if (filteredData.get(j).get(i)) {
+                                    rasterData[i * width + j] = color.getRGB();
+                                }
                             }
                         }
-                    }
+                    });
                 }
+                runAll(tasks);
             }
             raster.setDataElements(0, 0, width, height, rasterData);
             return texture;
         }
+        
+        private void runAll(List<Runnable> tasks) {
+            try {
+                RenderScheduler.getInstance().invokeAll(RenderScheduler.Priority.BACKGROUND, tasks);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Texture generation interrupted");
+            }
+        }
     }
     
 }
@@ -0,0 +1,64 @@
+package graphics;
+
+import java.util.Arrays;
+
+//Depth of every pixel of a frame. Renderers split the frame between threads, so a pixel is only ever written by one
+//thread at a time and plain reads and writes are enough
+public class DepthBuffer {
+    private int width = 0;
+    private int height = 0;
+    private float[] data = new float[0];
+    
+    public DepthBuffer() {}
+    
+    public DepthBuffer(int width, int height) {
+        resize(width, height);
+    }
+    
+    public void resize(int width, int height) {
+        width = Math.max(0, width);
+        height = Math.max(0, height);
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        data = new float[width * height];
+        clear();
+    }
+    
+    public void clear() {
+        Arrays.fill(data, Float.POSITIVE_INFINITY);
+    }
+    
+    //Writes the depth if it is nearer than the stored one, returns true if it was written
+    public boolean testAndSet(int x, int y, double depth) {
+        if (x < 0 || x >= width || y < 0 || y >= height || Double.isNaN(depth)) {
+            return false;
+        }
+        int index = y * width + x;
+        float value = (float) depth;
+        if (value < data[index]) {
+            data[index] = value;
+            return true;
+        }
+        return false;
+    }
+    
+    //Write without a test, for callers that keep their own depths such as a render tile
+    public void set(int x, int y, double depth) {
+        data[y * width + x] = (float) depth;
+    }
+    
+    public double get(int x, int y) {
+        return data[y * width + x];
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+}
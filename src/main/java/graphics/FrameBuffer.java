@@ -0,0 +1,133 @@
+package graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+public class FrameBuffer {
+    private int width = 0;
+    private int height = 0;
+    private BufferedImage image;
+    private int[] pixels;
+    private final DepthBuffer depth = new DepthBuffer();
+    
+    public FrameBuffer() {
+        allocate();
+    }
+    
+    public FrameBuffer(int width, int height) {
+        resize(width, height);
+    }
+    
+    public void resize(int width, int height) {
+        width = Math.max(0, width);
+        height = Math.max(0, height);
+        if (width == this.width && height == this.height && image != null) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        allocate();
+        depth.resize(width, height);
+    }
+    
+    private void allocate() {
+        //BufferedImage can not be empty, so a zero-sized frame keeps a 1x1 image that is never drawn into
+        image = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+    
+    public void clear(int argb) {
+        Arrays.fill(pixels, argb);
+        depth.clear();
+    }
+    
+    public void setPixel(int x, int y, int argb) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return;
+        }
+        pixels[y * width + x] = argb;
+    }
+    
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+    
+    public void drawLine(int x0, int y0, int x1, int y1, int argb) {
+        //Clip to the frame first (Liang-Barsky) so lines far off screen don't walk every pixel
+        double t0 = 0;
+        double t1 = 1;
+        double ddx = x1 - x0;
+        double ddy = y1 - y0;
+        double[] p = {-ddx, ddx, -ddy, ddy};
+        double[] q = {x0, width - 1 - x0, y0, height - 1 - y0};
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return;
+                }
+            }
+            else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                }
+                else {
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        if (t0 > t1) {
+            return;
+        }
+        int cx0 = (int) Math.round(x0 + t0 * ddx);
+        int cy0 = (int) Math.round(y0 + t0 * ddy);
+        int cx1 = (int) Math.round(x0 + t1 * ddx);
+        int cy1 = (int) Math.round(y0 + t1 * ddy);
+        drawLineClipped(cx0, cy0, cx1, cy1, argb);
+    }
+    
+    //Bresenham line, endpoints are expected to be inside the frame
+    private void drawLineClipped(int x0, int y0, int x1, int y1, int argb) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        while (true) {
+            setPixel(x0, y0, argb);
+            if (x0 == x1 && y0 == y1) {
+                break;
+            }
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y0 += sy;
+            }
+        }
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public BufferedImage getImage() {
+        return image;
+    }
+    
+    public int[] getPixels() {
+        return pixels;
+    }
+    
+    public DepthBuffer getDepth() {
+        return depth;
+    }
+}
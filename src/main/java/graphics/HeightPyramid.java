@@ -0,0 +1,83 @@
+package graphics;
+
+//Maximum mipmap of a FunctionCache: level 0 holds the lowest and highest model height of every grid cell and each further
+//level merges 2x2 nodes of the one below, up to a single node over the whole grid. Rays skip every node whose height
+//range they pass above or below. Cells with a missing sample are empty and never hit.
+public class HeightPyramid {
+    private final int resolution;
+    private final int levels;
+    private final float[][] lowest;
+    private final float[][] highest;
+    
+    public HeightPyramid(ContourPlotDisplay3D.FunctionCache cache) {
+        resolution = cache.getResolution();
+        int size = Integer.highestOneBit(resolution);
+        if (size < resolution) {
+            size <<= 1;
+        }
+        levels = Integer.numberOfTrailingZeros(size) + 1;
+        lowest = new float[levels][];
+        highest = new float[levels][];
+        
+        //Heights are rounded outwards to float, so no node range is narrower than the surface inside it
+        lowest[0] = new float[size * size];
+        highest[0] = new float[size * size];
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                double low = Double.POSITIVE_INFINITY;
+                double high = Double.NEGATIVE_INFINITY;
+                if (row < resolution && col < resolution) {
+                    for (int k = 0; k < 4; k++) {
+                        double h = cache.getModelHeight(row + k / 2, col + k % 2);
+                        if (Double.isNaN(h)) {
+                            low = Double.POSITIVE_INFINITY;
+                            high = Double.NEGATIVE_INFINITY;
+                            break;
+                        }
+                        low = Math.min(low, h);
+                        high = Math.max(high, h);
+                    }
+                }
+                lowest[0][row * size + col] = Math.nextDown((float) low);
+                highest[0][row * size + col] = Math.nextUp((float) high);
+            }
+        }
+        
+        for (int level = 1; level < levels; level++) {
+            int side = size >> level;
+            int below = side << 1;
+            lowest[level] = new float[side * side];
+            highest[level] = new float[side * side];
+            for (int row = 0; row < side; row++) {
+                for (int col = 0; col < side; col++) {
+                    int child = 2 * row * below + 2 * col;
+                    float[] low = lowest[level - 1];
+                    float[] high = highest[level - 1];
+                    lowest[level][row * side + col] = Math.min(Math.min(low[child], low[child + 1]), Math.min(low[child + below], low[child + below + 1]));
+                    highest[level][row * side + col] = Math.max(Math.max(high[child], high[child + 1]), Math.max(high[child + below], high[child + below + 1]));
+                }
+            }
+        }
+    }
+    
+    public int getResolution() {
+        return resolution;
+    }
+    
+    public int getLevels() {
+        return levels;
+    }
+    
+    //Nodes per side of a level
+    public int getSide(int level) {
+        return 1 << (levels - 1 - level);
+    }
+    
+    public float getLowest(int level, int row, int col) {
+        return lowest[level][row * getSide(level) + col];
+    }
+    
+    public float getHighest(int level, int row, int col) {
+        return highest[level][row * getSide(level) + col];
+    }
+}
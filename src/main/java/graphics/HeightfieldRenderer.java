@@ -0,0 +1,368 @@
+package graphics;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+//Draws the terrain of a FunctionCache by casting one ray per pixel against its height grid instead of rasterizing triangles.
+//Rays come from inverting the projection and the model transform, they walk the HeightPyramid front to back and only
+//test the two triangles of grid cells whose height range they cross, so the surface is the one of the full detail mesh.
+//Rows are traced in parallel and shaded with the same texture sampling and contours as rasterized triangles.
+public class HeightfieldRenderer {
+    private static final int ROWS_PER_TASK = 4;
+    //Slack for rays passing exactly between two cells or two triangles
+    private static final double EPSILON = 1e-9;
+    
+    //Returns false if rendering was stopped because cancelled returned true
+    public boolean render(RenderSettings settings, FrameBuffer frame, Transform3D transform, Mipmapper mm, BooleanSupplier cancelled) throws InterruptedException {
+        HeightPyramid pyramid = settings.getCache().getHeightPyramid();
+        double[] m = transform.toArray();
+        double[] inverse = invert(m);
+        if (inverse == null) {
+            return !cancelled.getAsBoolean();
+        }
+        Projection projection = settings.getProjection();
+        
+        List<Runnable> tasks = new ArrayList<>();
+        for (int start = 0; start < frame.getHeight(); start += ROWS_PER_TASK) {
+            int from = start;
+            int to = Math.min(frame.getHeight(), start + ROWS_PER_TASK);
+            tasks.add(() -> {
+                Tracer tracer = new Tracer(settings.getCache(), pyramid, projection, inverse);
+                for (int y = from; y < to && !cancelled.getAsBoolean(); y++) {
+                    for (int x = 0; x < frame.getWidth(); x++) {
+                        tracer.shade(settings, frame, x, y, mm);
+                    }
+                }
+            });
+        }
+        RenderScheduler.getInstance().invokeAll(RenderScheduler.Priority.INTERACTIVE, tasks);
+        return !cancelled.getAsBoolean();
+    }
+    
+    //Inverse of the affine part of a row-major 4x4 matrix, laid out the same way, or null if it is singular
+    private static double[] invert(double[] m) {
+        double c00 = m[5] * m[10] - m[6] * m[9];
+        double c01 = m[6] * m[8] - m[4] * m[10];
+        double c02 = m[4] * m[9] - m[5] * m[8];
+        double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+        if (det == 0 || Double.isNaN(det)) {
+            return null;
+        }
+        double[] r = new double[12];
+        r[0] = c00 / det;
+        r[1] = (m[2] * m[9] - m[1] * m[10]) / det;
+        r[2] = (m[1] * m[6] - m[2] * m[5]) / det;
+        r[4] = c01 / det;
+        r[5] = (m[0] * m[10] - m[2] * m[8]) / det;
+        r[6] = (m[2] * m[4] - m[0] * m[6]) / det;
+        r[8] = c02 / det;
+        r[9] = (m[1] * m[8] - m[0] * m[9]) / det;
+        r[10] = (m[0] * m[5] - m[1] * m[4]) / det;
+        for (int i = 0; i < 3; i++) {
+            r[4 * i + 3] = -(r[4 * i] * m[3] + r[4 * i + 1] * m[7] + r[4 * i + 2] * m[11]);
+        }
+        return r;
+    }
+    
+    //Per thread state, rays and the traversal stack are reused from pixel to pixel
+    private static class Tracer {
+        private final ContourPlotDisplay3D.FunctionCache cache;
+        private final HeightPyramid pyramid;
+        private final Projection projection;
+        private final double[] inverse;
+        private final int resolution;
+        
+        //Ray in model space, origin and direction per unit of view depth, valid from tMin to tMax
+        private final double[] origin = new double[3];
+        private final double[] direction = new double[3];
+        private double tMin;
+        private double tMax;
+        
+        private final int[] stackLevel;
+        private final int[] stackRow;
+        private final int[] stackCol;
+        private final double[] range = new double[2];
+        private final double[] childNear = new double[4];
+        private final int[] childIndex = new int[4];
+        
+        //Nearest hit: position in model space and normal of the triangle
+        private final double[] hit = new double[3];
+        private final double[] normal = new double[3];
+        
+        private Tracer(ContourPlotDisplay3D.FunctionCache cache, HeightPyramid pyramid, Projection projection, double[] inverse) {
+            this.cache = cache;
+            this.pyramid = pyramid;
+            this.projection = projection;
+            this.inverse = inverse;
+            resolution = pyramid.getResolution();
+            int depth = 3 * pyramid.getLevels() + 1;
+            stackLevel = new int[depth];
+            stackRow = new int[depth];
+            stackCol = new int[depth];
+        }
+        
+        private void shade(RenderSettings settings, FrameBuffer frame, int x, int y, Mipmapper mm) {
+            if (!ray(x + 0.5, y + 0.5)) {
+                return;
+            }
+            double t = trace();
+            if (Double.isNaN(t) || !frame.getDepth().testAndSet(x, y, t)) {
+                return;
+            }
+            double hx = hit[0];
+            double hy = hit[1];
+            double hz = hit[2];
+            double nx = normal[0];
+            double ny = normal[1];
+            double nz = normal[2];
+            
+            //Screen space derivatives come from where the rays of the next pixels meet the plane of the hit triangle,
+            //for the texture coordinates u = (x + 1) / 2 and v = (z + 1) / 2 and for the height
+            double duX = 0;
+            double dvX = 0;
+            double dhX = 0;
+            double duY = 0;
+            double dvY = 0;
+            double dhY = 0;
+            if (ray(x + 1.5, y + 0.5)) {
+                double s = planeDistance(hx, hy, hz, nx, ny, nz);
+                duX = (origin[0] + s * direction[0] - hx) / 2;
+                dhX = origin[1] + s * direction[1] - hy;
+                dvX = (origin[2] + s * direction[2] - hz) / 2;
+            }
+            if (ray(x + 0.5, y + 1.5)) {
+                double s = planeDistance(hx, hy, hz, nx, ny, nz);
+                duY = (origin[0] + s * direction[0] - hx) / 2;
+                dhY = origin[1] + s * direction[1] - hy;
+                dvY = (origin[2] + s * direction[2] - hz) / 2;
+            }
+            
+            int contours = settings.getContours();
+            int c;
+            double heightGradient = Math.sqrt(dhX * dhX + dhY * dhY);
+            if (settings.isDrawContours() && contours > 0 && cache.getContourDistanceNormalized(hy, contours, settings.getContourOffset()) < 0.5 * settings.getContourWidth() * heightGradient) {
+                c = settings.getContourColor().getRGB();
+            }
+            else {
+                if (settings.isDrawFaces()) {
+                    double levelU = 0;
+                    double levelV = 0;
+                    if (settings.isUseMipmap()) {
+                        levelU = SceneRenderer.mipmapLevel(duX, duY, mm.getTexture().getWidth(), settings.getMipmapBiasU());
+                        levelV = SceneRenderer.mipmapLevel(dvX, dvY, mm.getTexture().getHeight(), settings.getMipmapBiasV());
+                    }
+                    c = mm.sampleRGB((hx + 1) / 2, 1 - (hz + 1) / 2, levelU, levelV, settings.getFiltering());
+                }
+                else {
+                    c = settings.getBackground();
+                }
+            }
+            frame.setPixel(x, y, c);
+        }
+        
+        private double height(int row, int col) {
+            return cache.getModelHeight(row, col);
+        }
+        
+        //Ray parameter where the current ray meets the plane through the point with the normal
+        private double planeDistance(double px, double py, double pz, double nx, double ny, double nz) {
+            double denominator = nx * direction[0] + ny * direction[1] + nz * direction[2];
+            if (denominator == 0) {
+                return 0;
+            }
+            return (nx * (px - origin[0]) + ny * (py - origin[1]) + nz * (pz - origin[2])) / denominator;
+        }
+        
+        //Sets up the ray through a screen position, inverting Projection.project. Returns false if no point maps there
+        private boolean ray(double sx, double sy) {
+            double px = projection.viewX(sx);
+            double py = projection.viewY(sy);
+            
+            //View space points of the ray are a + t * b, t being the view depth
+            double ax;
+            double ay;
+            double bx;
+            double by;
+            tMin = Double.NEGATIVE_INFINITY;
+            tMax = Double.POSITIVE_INFINITY;
+            if (projection.isParallelMode()) {
+                double obliqueX = projection.getFactorL() * Math.cos(projection.getAngleA());
+                double obliqueY = projection.getFactorL() * Math.sin(projection.getAngleA());
+                ax = px;
+                ay = py;
+                bx = -obliqueX;
+                by = -obliqueY;
+            }
+            else {
+                //With w = 1 + |x| / d + |y| / d + z / d for the enabled axes, x = px * w and y = py * w make w linear in z
+                double d = projection.getFactorD();
+                double wx = projection.isWarpX() ? 1 / d : 0;
+                double wy = projection.isWarpY() ? 1 / d : 0;
+                double wz = projection.isWarpZ() ? 1 / d : 0;
+                double k = 1 - wx * Math.abs(px) - wy * Math.abs(py);
+                if (!(k > 0)) {
+                    return false;
+                }
+                ax = px / k;
+                ay = py / k;
+                bx = px * wz / k;
+                by = py * wz / k;
+                if (wz > 0) {
+                    tMin = -1 / wz;
+                }
+                else if (wz < 0) {
+                    tMax = -1 / wz;
+                }
+            }
+            
+            double[] r = inverse;
+            origin[0] = r[0] * ax + r[1] * ay + r[3];
+            origin[1] = r[4] * ax + r[5] * ay + r[7];
+            origin[2] = r[8] * ax + r[9] * ay + r[11];
+            direction[0] = r[0] * bx + r[1] * by + r[2];
+            direction[1] = r[4] * bx + r[5] * by + r[6];
+            direction[2] = r[8] * bx + r[9] * by + r[10];
+            return true;
+        }
+        
+        //Parameter of the nearest hit or NaN, the hit itself is left in hit and normal
+        private double trace() {
+            range[0] = tMin;
+            range[1] = tMax;
+            if (!clipNode(pyramid.getLevels() - 1, 0, 0)) {
+                return Double.NaN;
+            }
+            stackLevel[0] = pyramid.getLevels() - 1;
+            stackRow[0] = 0;
+            stackCol[0] = 0;
+            int top = 1;
+            
+            while (top > 0) {
+                top--;
+                int level = stackLevel[top];
+                int row = stackRow[top];
+                int col = stackCol[top];
+                if (level == 0) {
+                    double t = intersectCell(row, col);
+                    if (!Double.isNaN(t)) {
+                        return t;
+                    }
+                    continue;
+                }
+                
+                //Children go on the stack farthest first, so the nearest one is visited next
+                int count = 0;
+                for (int k = 0; k < 4; k++) {
+                    range[0] = tMin;
+                    range[1] = tMax;
+                    if (clipNode(level - 1, 2 * row + k / 2, 2 * col + k % 2)) {
+                        int i = count++;
+                        while (i > 0 && childNear[i - 1] < range[0]) {
+                            childNear[i] = childNear[i - 1];
+                            childIndex[i] = childIndex[i - 1];
+                            i--;
+                        }
+                        childNear[i] = range[0];
+                        childIndex[i] = k;
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    stackLevel[top] = level - 1;
+                    stackRow[top] = 2 * row + childIndex[i] / 2;
+                    stackCol[top] = 2 * col + childIndex[i] % 2;
+                    top++;
+                }
+            }
+            return Double.NaN;
+        }
+        
+        //Narrows range to the part of the ray inside the bounds of a node, false if the ray misses it
+        private boolean clipNode(int level, int row, int col) {
+            int side = pyramid.getSide(level);
+            if (row >= side || col >= side) {
+                return false;
+            }
+            float low = pyramid.getLowest(level, row, col);
+            float high = pyramid.getHighest(level, row, col);
+            if (!(low <= high)) {
+                return false;
+            }
+            int span = 1 << level;
+            int col0 = col * span;
+            int row0 = row * span;
+            if (col0 >= resolution || row0 >= resolution) {
+                return false;
+            }
+            int col1 = Math.min(resolution, col0 + span);
+            int row1 = Math.min(resolution, row0 + span);
+            return clip(origin[0], direction[0], 2.0 * col0 / resolution - 1 - EPSILON, 2.0 * col1 / resolution - 1 + EPSILON)
+                    && clip(origin[2], direction[2], 2.0 * row0 / resolution - 1 - EPSILON, 2.0 * row1 / resolution - 1 + EPSILON)
+                    && clip(origin[1], direction[1], low, high);
+        }
+        
+        private boolean clip(double o, double d, double lower, double upper) {
+            if (d == 0) {
+                return o >= lower && o <= upper;
+            }
+            double t0 = (lower - o) / d;
+            double t1 = (upper - o) / d;
+            range[0] = Math.max(range[0], Math.min(t0, t1));
+            range[1] = Math.min(range[1], Math.max(t0, t1));
+            return range[0] <= range[1];
+        }
+        
+        //Nearest hit with the two triangles of a grid cell, split along the same diagonal as the terrain mesh
+        private double intersectCell(int row, int col) {
+            double t = intersect(row, col, row + 1, col, row + 1, col + 1, Double.NaN);
+            return intersect(row + 1, col + 1, row, col + 1, row, col, t);
+        }
+        
+        //Moller-Trumbore, returns the nearer of the hit and best and keeps hit and normal up to date
+        private double intersect(int ra, int ca, int rb, int cb, int rc, int cc, double best) {
+            double ax = 2.0 * ca / resolution - 1;
+            double az = 2.0 * ra / resolution - 1;
+            double ay = height(ra, ca);
+            double e1x = 2.0 * cb / resolution - 1 - ax;
+            double e1y = height(rb, cb) - ay;
+            double e1z = 2.0 * rb / resolution - 1 - az;
+            double e2x = 2.0 * cc / resolution - 1 - ax;
+            double e2y = height(rc, cc) - ay;
+            double e2z = 2.0 * rc / resolution - 1 - az;
+            
+            double px = direction[1] * e2z - direction[2] * e2y;
+            double py = direction[2] * e2x - direction[0] * e2z;
+            double pz = direction[0] * e2y - direction[1] * e2x;
+            double det = e1x * px + e1y * py + e1z * pz;
+            if (det == 0 || Double.isNaN(det)) {
+                return best;
+            }
+            double sx = origin[0] - ax;
+            double sy = origin[1] - ay;
+            double sz = origin[2] - az;
+            double u = (sx * px + sy * py + sz * pz) / det;
+            if (u < -EPSILON || u > 1 + EPSILON) {
+                return best;
+            }
+            double qx = sy * e1z - sz * e1y;
+            double qy = sz * e1x - sx * e1z;
+            double qz = sx * e1y - sy * e1x;
+            double v = (direction[0] * qx + direction[1] * qy + direction[2] * qz) / det;
+            if (v < -EPSILON || u + v > 1 + EPSILON) {
+                return best;
+            }
+            double t = (e2x * qx + e2y * qy + e2z * qz) / det;
+            if (t < tMin || t > tMax || t >= best) {
+                return best;
+            }
+            hit[0] = origin[0] + t * direction[0];
+            hit[1] = origin[1] + t * direction[1];
+            hit[2] = origin[2] + t * direction[2];
+            normal[0] = e1y * e2z - e1z * e2y;
+            normal[1] = e1z * e2x - e1x * e2z;
+            normal[2] = e1x * e2y - e1y * e2x;
+            return t;
+        }
+    }
+}
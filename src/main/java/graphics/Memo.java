@@ -0,0 +1,76 @@
+package graphics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+//Keeps the results of a pipeline stage for its last few inputs. Keys have to describe everything the result depends on,
+//mutable inputs such as images are compared by identity and must not be changed while they are in use.
+public class Memo<K, V> {
+    private final String name;
+    private final Map<K, V> values;
+    private long hits = 0;
+    private long misses = 0;
+    private boolean lastHit = false;
+    
+    public Memo(String name) {
+        this(name, 1);
+    }
+    
+    public Memo(String name, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity");
+        }
+        this.name = name;
+        values = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    //A result is only stored once compute returns, a stage that throws leaves the memo as it was
+    public synchronized V get(K key, Function<K, V> compute) {
+        V value = values.get(key);
+        if (value != null) {
+            hits++;
+            lastHit = true;
+            return value;
+        }
+        misses++;
+        lastHit = false;
+        value = compute.apply(key);
+        values.put(key, value);
+        return value;
+    }
+    
+    public synchronized boolean contains(K key) {
+        return values.containsKey(key);
+    }
+    
+    public synchronized void clear() {
+        values.clear();
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    public synchronized boolean isLastHit() {
+        return lastHit;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return name + ": " + (lastHit ? "hit" : "miss") + " (" + hits + " hits, " + misses + " misses)";
+    }
+}
@@ -0,0 +1,95 @@
+package graphics;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Indexed triangle mesh in primitive arrays, each vertex is stored once no matter how many triangles share it
+public class Mesh {
+    public static final int STRIDE = 5;
+    
+    //x, y, z, u, v for each vertex
+    private final double[] vertices;
+    //Three vertex indices for each triangle
+    private final int[] triangles;
+    //Triangles are grouped into spatially compact chunks, chunk i holds triangles chunkOffsets[i] to chunkOffsets[i + 1] - 1
+    private final int[] chunkOffsets;
+    
+    public Mesh(double[] vertices, int[] triangles) {
+        this(vertices, triangles, new int[]{0, triangles.length / 3});
+    }
+    
+    public Mesh(double[] vertices, int[] triangles, int[] chunkOffsets) {
+        if (vertices.length % STRIDE != 0 || triangles.length % 3 != 0) {
+            throw new IllegalArgumentException("Invalid mesh data");
+        }
+        if (chunkOffsets.length < 2 || chunkOffsets[0] != 0 || chunkOffsets[chunkOffsets.length - 1] != triangles.length / 3) {
+            throw new IllegalArgumentException("Invalid chunk offsets");
+        }
+        for (int i = 1; i < chunkOffsets.length; i++) {
+            if (chunkOffsets[i] < chunkOffsets[i - 1]) {
+                throw new IllegalArgumentException("Invalid chunk offsets");
+            }
+        }
+        int vertexCount = vertices.length / STRIDE;
+        for (int index : triangles) {
+            if (index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Vertex index out of range");
+            }
+        }
+        this.vertices = vertices;
+        this.triangles = triangles;
+        this.chunkOffsets = chunkOffsets;
+    }
+    
+    //Polygon corners that are the same Point3D object become the same mesh vertex
+    public static Mesh fromPolygons(List<Point3D> points, List<Polygon> polygons) {
+        Map<Point3D, Integer> indices = new IdentityHashMap<>();
+        for (Point3D p : points) {
+            indices.putIfAbsent(p, indices.size());
+        }
+        int[] triangles = new int[3 * polygons.size()];
+        for (int i = 0; i < polygons.size(); i++) {
+            Polygon polygon = polygons.get(i);
+            triangles[3 * i] = indices.computeIfAbsent(polygon.a, p -> indices.size());
+            triangles[3 * i + 1] = indices.computeIfAbsent(polygon.b, p -> indices.size());
+            triangles[3 * i + 2] = indices.computeIfAbsent(polygon.c, p -> indices.size());
+        }
+        
+        double[] vertices = new double[STRIDE * indices.size()];
+        for (Map.Entry<Point3D, Integer> entry : indices.entrySet()) {
+            Point3D p = entry.getKey();
+            int offset = STRIDE * entry.getValue();
+            vertices[offset] = p.getX();
+            vertices[offset + 1] = p.getY();
+            vertices[offset + 2] = p.getZ();
+            vertices[offset + 3] = p.getU();
+            vertices[offset + 4] = p.getV();
+        }
+        return new Mesh(vertices, triangles);
+    }
+    
+    public int getVertexCount() {
+        return vertices.length / STRIDE;
+    }
+    
+    public int getTriangleCount() {
+        return triangles.length / 3;
+    }
+    
+    public int getChunkCount() {
+        return chunkOffsets.length - 1;
+    }
+    
+    public int[] getChunkOffsets() {
+        return chunkOffsets;
+    }
+    
+    public double[] getVertices() {
+        return vertices;
+    }
+    
+    public int[] getTriangles() {
+        return triangles;
+    }
+}
@@ -3,206 +3,640 @@ package graphics;
 import graphics.TextureUtils.Filtering;
 
 import java.awt.*;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static graphics.TextureUtils.interpolate;
 
+//Rip-map of a texture: level (x, y) is halved x times horizontally and y times vertically.
+//Levels are built from the level before them through the gamma tables of TextureUtils and can be kept in a smaller
+//storage than packed ARGB. A level is built by the first thread asking for it, others asking meanwhile wait for that
+//build. Built levels are read without locking.
+//With a memory budget, the least recently sampled anisotropic levels are dropped when the levels outgrow it and are
+//built again when asked for. The texture itself and the levels halved equally in both directions are always kept.
 public class Mipmapper {
-    private List<List<BufferedImage>> data = new ArrayList<>();
-    private BufferedImage texture;
-    private boolean generated = false;
-    private static final int THREADS_MAX = 4;
+    public static final String BUDGET_PROPERTY = "topography.mipmapBudget";
+    public static final String STORAGE_PROPERTY = "topography.mipmapStorage";
+    public static final long UNLIMITED = Long.MAX_VALUE;
     
-    public Mipmapper() {
-        data.add(new ArrayList<>());
-    }
+    private static final int ROWS_PER_TASK = 32;
+    
+    private volatile BufferedImage texture;
+    //Levels per direction, 1 << steps covers the shorter side of the texture
+    private volatile int steps = 0;
+    //Builds of the levels, index y * count + x. A slot is filled once, by whoever asks for the level first
+    private volatile AtomicReferenceArray<FutureTask<Level>> levels = new AtomicReferenceArray<>(1);
+    private final AtomicInteger built = new AtomicInteger();
+    private Future<?> prebuild;
+    
+    private volatile Storage storage = defaultStorage();
+    private volatile long memoryBudget = defaultBudget();
+    //Bytes of the built levels besides the texture
+    private final AtomicLong memoryUsed = new AtomicLong();
+    //Advanced on every build, levels remember the epoch they were last sampled in. Only the first sample of a level in
+    //an epoch writes, so sampling does not keep writing to memory shared by all threads
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Object evictionLock = new Object();
+    //Built on first use, outside of the budget
+    private volatile SummedAreaTable summedAreaTable;
+    
+    public Mipmapper() {}
     
     public Mipmapper(BufferedImage texture) {
         loadTexture(texture);
     }
     
-    public void loadTexture(BufferedImage texture) {
-        generated = false;
+    private static Storage defaultStorage() {
+        String storage = System.getProperty(STORAGE_PROPERTY);
+        return storage == null ? Storage.ARGB : Storage.valueOf(storage.trim().toUpperCase());
+    }
+    
+    //The property is in megabytes
+    private static long defaultBudget() {
+        Long megabytes = Long.getLong(BUDGET_PROPERTY);
+        return megabytes == null || megabytes <= 0 ? UNLIMITED : megabytes << 20;
+    }
+    
+    //Not meant to be called while other threads sample the texture
+    public synchronized void loadTexture(BufferedImage texture) {
         this.texture = texture;
-        data.clear();
-        data.add(new ArrayList<>());
-        data.get(0).add(texture);
+        steps = texture == null ? 0 : (int) Math.ceil(Math.log(Math.min(texture.getHeight(), texture.getWidth())) / Math.log(2));
+        int count = Math.max(1, steps);
+        AtomicReferenceArray<FutureTask<Level>> levels = new AtomicReferenceArray<>(count * count);
+        FutureTask<Level> base = new FutureTask<>(() -> new Level(texture));
+        base.run();
+        levels.set(0, base);
+        built.set(1);
+        Level baseLevel = getBuilt(base);
+        memoryUsed.set(baseLevel == null ? 0 : baseLevel.getBytes());
+        prebuild = null;
+        summedAreaTable = null;
+        this.levels = levels;
     }
     
     public BufferedImage getTexture() {
         return texture;
     }
     
-    private void createMipmaps() {
-        {
-            generated = true;
-            ExecutorService executor = Executors.newFixedThreadPool(THREADS_MAX);
-            List<Future<?>> futures = new ArrayList<>();
-            
-            int steps = (int) Math.ceil(Math.log(Math.min(texture.getHeight(), texture.getWidth())) / Math.log(2));
-    
-            for (int m = 0; m < steps; m++) {
-                if (m != 0) {
-                    futures.clear();
-                    data.add(new ArrayList<>());
-                    BufferedImage prev = getMipmap(0, m - 1);
-                    BufferedImage img = new BufferedImage(prev.getWidth(), prev.getHeight() / 2, prev.getType());
-                    
-                    for (int i = 0; i < img.getHeight(); i++) {
-                        int finalI = i;
-                        Future<?> future = executor.submit(() -> {
-                            for (int j = 0; j < img.getWidth(); j++) {
-                                Color c;
-                                Color c1;
-                                Color c2;
-                                try {
-                                    c1 = new Color(prev.getRGB(j, 2 * finalI));
-                                    try {
-                                        c2 = new Color(prev.getRGB(j, 2 * finalI + 1));
-                                        c = interpolate(c1, c2, 0.5);
-                                    } catch (ArrayIndexOutOfBoundsException e) {
-                                        c = c1;
-                                    }
-                                } catch (ArrayIndexOutOfBoundsException e) {
-                                    c = new Color(0);
-                                }
-                                img.setRGB(j, finalI, c.getRGB());
-                            }
-                        });
-                        futures.add(future);
-                    }
+    //True once every level is built
+    public boolean isGenerated() {
+        return built.get() == levels.length();
+    }
     
-                    for (Future<?> future : futures) {
-                        try {
-                            future.get();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        } catch (ExecutionException e) {
-                            e.printStackTrace();
+    //Starts building the levels in the background, levels asked for before it gets to them are built right away anyway.
+    //Levels halved equally in both directions go first, anisotropic ones only while they fit in the budget.
+    public synchronized Future<?> prebuild() {
+        if (prebuild == null) {
+            int count = Math.max(1, steps);
+            prebuild = RenderScheduler.getInstance().submit(RenderScheduler.Priority.BACKGROUND, () -> {
+                for (int i = 0; i < count; i++) {
+                    getLevel(i, i);
+                }
+                for (int y = 0; y < count; y++) {
+                    for (int x = 0; x < count; x++) {
+                        if (x == y || isBuilt(x, y) || memoryUsed.get() + estimateBytes(x, y) <= memoryBudget) {
+                            getLevel(x, y);
                         }
                     }
-                
-                    data.get(m).add(img);
-                    //System.out.println("Width: " + img.getWidth() + " Height: " + img.getHeight());
-                }
-                for (int n = 1; n < steps; n++) {
-                    futures.clear();
-                    BufferedImage prev = getMipmap(n - 1, m);
-                    BufferedImage img = new BufferedImage(prev.getWidth() / 2, prev.getHeight(), prev.getType());
-                    for (int i = 0; i < img.getHeight(); i++) {
-                        int finalI = i;
-                        Future<?> future = executor.submit(() -> {
-                            for (int j = 0; j < img.getWidth(); j++) {
-                                Color c;
-                                Color c1;
-                                Color c2;
-                                try {
-                                    c1 = new Color(prev.getRGB(2 * j, finalI));
-                                    try {
-                                        c2 = new Color(prev.getRGB(2 * j + 1, finalI));
-                                        c = interpolate(c1, c2, 0.5);
-                                    } catch (ArrayIndexOutOfBoundsException e) {
-                                        c = c1;
-                                    }
-                                } catch (ArrayIndexOutOfBoundsException e) {
-                                    c = new Color(0);
-                                }
-                                img.setRGB(j, finalI, c.getRGB());
-                            }
-                        });
-                        futures.add(future);
+                }
+            });
+        }
+        return prebuild;
+    }
+    
+    private Level getLevel(int x, int y) {
+        if (texture == null) {
+            throw new IllegalStateException("No texture loaded");
+        }
+        AtomicReferenceArray<FutureTask<Level>> levels = this.levels;
+        int count = Math.max(1, steps);
+        int index = y * count + x;
+        FutureTask<Level> task = levels.get(index);
+        //A level can be evicted right after a lost race for its slot, then it is installed again
+        while (task == null) {
+            //Level (0, y) comes from (0, y - 1) and (x, y) from (x - 1, y), so every level comes out the same whatever the order
+            Storage storage = this.storage;
+            FutureTask<Level> created = new FutureTask<>(() -> {
+                Level level = x > 0 ? halve(getLevel(x - 1, y), false, storage) : halve(getLevel(x, y - 1), true, storage);
+                built.incrementAndGet();
+                memoryUsed.addAndGet(level.getBytes());
+                epoch.incrementAndGet();
+                return level;
+            });
+            task = levels.compareAndSet(index, null, created) ? created : levels.get(index);
+            if (task == created) {
+                task.run();
+                evict(levels, index);
+            }
+        }
+        //Only the first caller runs the build, the others return from run at once and wait in get
+        task.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Level level = task.get();
+                    long now = epoch.get();
+                    if (level.lastUsed != now) {
+                        level.lastUsed = now;
                     }
-                    for (Future<?> future : futures) {
-                        try {
-                            future.get();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        } catch (ExecutionException e) {
-                            e.printStackTrace();
+                    return level;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            //A failed build is dropped, so the next caller tries again
+            levels.compareAndSet(index, task, null);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    //Drops the least recently sampled anisotropic levels until the built ones fit in the budget, keeping the one just built
+    private void evict(AtomicReferenceArray<FutureTask<Level>> levels, int keep) {
+        if (memoryUsed.get() <= memoryBudget) {
+            return;
+        }
+        synchronized (evictionLock) {
+            int count = Math.max(1, steps);
+            List<Integer> candidates = new ArrayList<>();
+            for (int index = 0; index < levels.length(); index++) {
+                if (index != keep && index / count != index % count && getBuilt(levels.get(index)) != null) {
+                    candidates.add(index);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(index -> getBuilt(levels.get(index)).lastUsed));
+            for (int index : candidates) {
+                if (memoryUsed.get() <= memoryBudget) {
+                    break;
+                }
+                FutureTask<Level> task = levels.get(index);
+                //Threads holding the level keep using it, it is only gone from the slot
+                if (levels.compareAndSet(index, task, null)) {
+                    memoryUsed.addAndGet(-getBuilt(task).getBytes());
+                    built.decrementAndGet();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+    
+    //Level of a finished build, null if there is none
+    private static Level getBuilt(FutureTask<Level> task) {
+        if (task == null || !task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+    
+    //Averages pairs of rows or of columns, rows are split into tasks of a few rows each
+    private static Level halve(Level prev, boolean vertical, Storage storage) {
+        RenderScheduler scheduler = RenderScheduler.getInstance();
+        int width = vertical ? prev.width : prev.width / 2;
+        int height = vertical ? prev.height / 2 : prev.height;
+        int rowsPerOutput = vertical ? 2 : 1;
+        Level level = new Level(width, height, storage);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int start = 0; start < height; start += ROWS_PER_TASK) {
+            int from = start;
+            int to = Math.min(height, start + ROWS_PER_TASK);
+            tasks.add(() -> {
+                //Packed ARGB levels are read in place, others are unpacked a block of rows at a time
+                int[] src = prev.pixels;
+                int offset = from * rowsPerOutput * prev.width;
+                if (src == null) {
+                    src = prev.readRows(from * rowsPerOutput, (to - from) * rowsPerOutput);
+                    offset = 0;
+                }
+                //Packed ARGB levels are written in place too, others get the block encoded once it is done
+                int[] out = level.pixels != null ? level.pixels : new int[(to - from) * width];
+                int outOffset = level.pixels != null ? from * width : 0;
+                for (int i = from; i < to; i++) {
+                    int row = offset + (i - from) * rowsPerOutput * prev.width;
+                    int o = outOffset + (i - from) * width;
+                    if (vertical) {
+                        for (int j = 0; j < width; j++) {
+                            out[o + j] = TextureUtils.average(src[row + j], src[row + prev.width + j]);
                         }
                     }
-                    data.get(m).add(img);
-                    //System.out.println("Width: " + img.getWidth() + " Height: " + img.getHeight());
+                    else {
+                        for (int j = 0; j < width; j++) {
+                            out[o + j] = TextureUtils.average(src[row + 2 * j], src[row + 2 * j + 1]);
+                        }
+                    }
+                }
+                if (level.pixels == null) {
+                    level.writeRows(from, to - from, out);
                 }
+            });
+        }
+        runAll(scheduler, tasks);
+        return level;
+    }
+    
+    //An interrupted build fails, a level missing rows must not be kept
+    private static void runAll(RenderScheduler scheduler, List<Runnable> tasks) {
+        try {
+            scheduler.invokeAll(RenderScheduler.Priority.BACKGROUND, tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Mipmap build interrupted");
+        }
+    }
+    
+    private boolean isBuilt(int x, int y) {
+        FutureTask<Level> task = levels.get(y * Math.max(1, steps) + x);
+        return task != null && task.isDone();
+    }
+    
+    //Size of a level before it is built
+    private long estimateBytes(int x, int y) {
+        return (long) (texture.getWidth() >> x) * (texture.getHeight() >> y) * storage.getBytesPerTexel();
+    }
+    
+    //Bytes held by a level, 0 if it is not built. The texture itself counts as 0, it belongs to whoever loaded it
+    public long getLevelBytes(int x, int y) {
+        int count = Math.max(1, steps);
+        if (x < 0 || y < 0 || x >= count || y >= count) {
+            return 0;
+        }
+        Level level = getBuilt(levels.get(y * count + x));
+        return level == null ? 0 : level.getBytes();
+    }
+    
+    //One line per built level: position, size, storage and bytes, then the total
+    public String getMemoryReport() {
+        StringBuilder report = new StringBuilder();
+        int count = Math.max(1, steps);
+        for (int y = 0; y < count; y++) {
+            for (int x = 0; x < count; x++) {
+                Level level = getBuilt(levels.get(y * count + x));
+                if (level == null) {
+                    continue;
+                }
+                report.append("(").append(x).append(", ").append(y).append(") ").append(level.width).append("x").append(level.height)
+                        .append(" ").append(level.storage == null ? "texture" : level.storage)
+                        .append(" ").append(level.getBytes()).append(" bytes\n");
             }
-            executor.shutdown();
-            try {
-                executor.awaitTermination(120, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        }
+        SummedAreaTable table = summedAreaTable;
+        if (table != null) {
+            report.append("Summed area table ").append(table.getBytes()).append(" bytes\n");
+        }
+        report.append("Total ").append(memoryUsed.get()).append(" of ").append(memoryBudget == UNLIMITED ? "unlimited" : memoryBudget + " bytes")
+                .append(", ").append(evictions.get()).append(" evicted");
+        return report.toString();
+    }
+    
+    public long getMemoryUsed() {
+        return memoryUsed.get();
+    }
+    
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+    
+    //Applies to levels built from now on, UNLIMITED turns eviction off
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Invalid memory budget");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+    
+    public Storage getStorage() {
+        return storage;
+    }
+    
+    //Applies to levels built from now on
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    public SummedAreaTable getSummedAreaTable() {
+        SummedAreaTable table = summedAreaTable;
+        if (table == null) {
+            synchronized (this) {
+                table = summedAreaTable;
+                if (table == null) {
+                    if (texture == null) {
+                        throw new IllegalStateException("No texture loaded");
+                    }
+                    table = new SummedAreaTable(texture);
+                    summedAreaTable = table;
+                }
             }
-            //System.out.println("X: " + countX() + ", Y: " + countY());
         }
+        return table;
     }
     
     public BufferedImage getMipmap(int x, int y) {
-        if (!generated && (x != 0 || y != 0)) {
-            createMipmaps();
-        }
-        y = Math.max(0, Math.min(data.size() - 1, y));
-        x = Math.max(0, Math.min(data.get(y).size() - 1, x));
-        
-        return data.get(y).get(x);
+        return getClamped(x, y).image;
     }
     
     public BufferedImage getMipmapUnclamped(int x, int y) {
-        if (!generated && (x != 0 || y != 0)) {
-            createMipmaps();
+        int count = Math.max(1, steps);
+        if (x < 0 || y < 0 || x >= count || y >= count) {
+            throw new IndexOutOfBoundsException("No mipmap level (" + x + ", " + y + ")");
         }
-        return data.get(y).get(x);
+        return getLevel(x, y).image;
+    }
+    
+    private Level getClamped(int x, int y) {
+        int count = Math.max(1, steps);
+        return getLevel(Math.max(0, Math.min(count - 1, x)), Math.max(0, Math.min(count - 1, y)));
     }
     
     public Color getColor(double u, double v, double mmU, double mmV, Filtering filter) {
-        BufferedImage mm;
+        return new Color(sampleRGB(u, v, mmU, mmV, filter));
+    }
+    
+    public Color getColor(double u, double v, double mmU, double mmV) {
+        return new Color(sampleRGB(u, v, mmU, mmV, Filtering.ANISOTROPIC));
+    }
+    
+    //Packed opaque RGB of the texture filtered like TextureUtils.getColor does, without allocating, for per-pixel use.
+    //Levels are blended through the gamma tables rather than Math.pow, which can round a step apart
+    public int sampleRGB(double u, double v, double mmU, double mmV, Filtering filter) {
         int level = (int) Math.max(Math.min(Math.round(mmU), countX() - 1), (int) Math.min(Math.round(mmV), countY() - 1));
         switch (filter) {
             case OFF:
-                mm = getMipmap(level, level);
-                return TextureUtils.getColor(mm, u, v, filter);
             case BILINEAR:
-                mm = getMipmap(level, level);
-                return TextureUtils.getColor(mm, u, v, filter);
+                return getClamped(level, level).sample(u, v, filter);
             case TRILINEAR:
-                return getColor(u, v, Math.max(mmU, mmV), Math.max(mmU, mmV));
+                return sampleRGB(u, v, Math.max(mmU, mmV), Math.max(mmU, mmV));
             case ANISOTROPIC:
-                return getColor(u, v, mmU, mmV);
-                default:
-                    return Color.BLACK;
+                return sampleRGB(u, v, mmU, mmV);
+            case SUMMED_AREA:
+                //A footprint of a texel or less averages like bilinear sampling
+                return getSummedAreaTable().average(u, v, Math.pow(2, mmU) / texture.getWidth(), Math.pow(2, mmV) / texture.getHeight());
+            default:
+                return 0xFF000000;
         }
     }
     
-    public Color getColor(double u, double v, double mmU, double mmV) {
-        
-        Color tl = TextureUtils.getColor(getMipmap((int) Math.floor(mmU), (int) Math.floor(mmV)), u, v);
-        Color tr = TextureUtils.getColor(getMipmap((int) Math.min(Math.ceil(mmU), countX() - 1), (int) Math.floor(mmV)), u, v);
-        Color bl = TextureUtils.getColor(getMipmap((int) Math.floor(mmU), (int) Math.min(Math.ceil(mmV), countY() - 1)), u, v);
-        Color br = TextureUtils.getColor(getMipmap((int) Math.min(Math.ceil(mmU), countX() - 1), (int) Math.min(Math.ceil(mmV), countY() - 1)), u, v);
+    //Bilinear samples of the four levels around (mmU, mmV), blended by how close the levels are
+    private int sampleRGB(double u, double v, double mmU, double mmV) {
+        int tl = getClamped((int) Math.floor(mmU), (int) Math.floor(mmV)).sample(u, v, Filtering.BILINEAR);
+        int tr = getClamped((int) Math.min(Math.ceil(mmU), countX() - 1), (int) Math.floor(mmV)).sample(u, v, Filtering.BILINEAR);
+        int bl = getClamped((int) Math.floor(mmU), (int) Math.min(Math.ceil(mmV), countY() - 1)).sample(u, v, Filtering.BILINEAR);
+        int br = getClamped((int) Math.min(Math.ceil(mmU), countX() - 1), (int) Math.min(Math.ceil(mmV), countY() - 1)).sample(u, v, Filtering.BILINEAR);
         
         double ax = 1 - Math.abs(Math.min(Math.ceil(mmU), countX() - 1) - mmU);
         double ay = 1 - Math.abs(Math.min(Math.ceil(mmV), countY() - 1) - mmV);
-    
-        Color t = interpolate(tl, tr, ax);
-        Color b = interpolate(bl, br, ax);
-    
+        
+        int t = interpolate(tl, tr, ax);
+        int b = interpolate(bl, br, ax);
+        
         return interpolate(t, b, ay);
     }
     
     public int countX() {
-        //return data.get(0).size();
-        if (texture == null) {
-            return 0;
-        }
-        return (int) Math.ceil(Math.log(Math.min(texture.getHeight(), texture.getWidth())) / Math.log(2));
+        return steps;
     }
     
     public int countY() {
-        //return data.size();
-        if (texture == null) {
+        return steps;
+    }
+    
+    //Storage of the levels below the texture. RGB keeps 8 bits per channel without alpha, RGB565 halves ARGB once more
+    //at the cost of a few levels of each channel
+    public enum Storage {
+        ARGB(4),
+        RGB(3),
+        RGB565(2);
+        
+        private final int bytesPerTexel;
+        
+        Storage(int bytesPerTexel) {
+            this.bytesPerTexel = bytesPerTexel;
+        }
+        
+        public int getBytesPerTexel() {
+            return bytesPerTexel;
+        }
+    }
+    
+    //Levels share their array with the image they are seen through. The texture is read from its own array when it is
+    //packed ints already and from a packed copy otherwise, so texels are read without going through
+    //BufferedImage.getRGB, which allocates
+    private static class Level {
+        final int width;
+        final int height;
+        final Storage storage;
+        //Only one of these is set, matching the storage
+        final int[] pixels;
+        final byte[] bytes;
+        final short[] shorts;
+        final BufferedImage image;
+        //Set for a texture without an array of its own to read
+        final boolean copied;
+        volatile long lastUsed;
+        
+        Level(BufferedImage texture) {
+            width = texture.getWidth();
+            height = texture.getHeight();
+            storage = null;
+            int[] packed = packedPixels(texture);
+            copied = packed == null;
+            pixels = copied ? texture.getRGB(0, 0, width, height, null, 0, width) : packed;
+            bytes = null;
+            shorts = null;
+            image = texture;
+        }
+        
+        Level(int width, int height, Storage storage) {
+            this.width = width;
+            this.height = height;
+            this.storage = storage;
+            copied = false;
+            switch (storage) {
+                case RGB: {
+                    pixels = null;
+                    bytes = new byte[3 * width * height];
+                    shorts = null;
+                    //Blue, green, red order makes this a TYPE_3BYTE_BGR image, which has fast paths in Java2D
+                    ColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+                    WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(bytes, bytes.length), width, height, 3 * width, 3, new int[]{2, 1, 0}, null);
+                    image = new BufferedImage(model, raster, false, null);
+                    break;
+                }
+                case RGB565: {
+                    pixels = null;
+                    bytes = null;
+                    shorts = new short[width * height];
+                    DirectColorModel model = new DirectColorModel(16, 0xF800, 0x07E0, 0x001F);
+                    WritableRaster raster = Raster.createPackedRaster(new DataBufferUShort(shorts, shorts.length), width, height, width, model.getMasks(), null);
+                    image = new BufferedImage(model, raster, false, null);
+                    break;
+                }
+                default: {
+                    pixels = new int[width * height];
+                    bytes = null;
+                    shorts = null;
+                    DirectColorModel model = (DirectColorModel) ColorModel.getRGBdefault();
+                    WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width, model.getMasks(), null);
+                    image = new BufferedImage(model, raster, false, null);
+                }
+            }
+        }
+        
+        //The array of an image of packed ints in the default layout, null for any other image
+        private static int[] packedPixels(BufferedImage image) {
+            if (image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_INT_ARGB) {
+                return null;
+            }
+            WritableRaster raster = image.getRaster();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                    || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                    || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()) {
+                return null;
+            }
+            return buffer.getData();
+        }
+        
+        //The texture's own array belongs to whoever loaded it and counts as 0
+        long getBytes() {
+            if (storage == null && !copied) {
+                return 0;
+            }
+            if (pixels != null) {
+                return 4L * pixels.length;
+            }
+            if (bytes != null) {
+                return bytes.length;
+            }
+            if (shorts != null) {
+                return 2L * shorts.length;
+            }
             return 0;
         }
-        return (int) Math.ceil(Math.log(Math.min(texture.getHeight(), texture.getWidth())) / Math.log(2));
+        
+        //Texel as stored, callers keep x and y inside the level
+        int texel(int x, int y) {
+            if (pixels != null) {
+                return pixels[y * width + x];
+            }
+            if (bytes != null) {
+                int b = 3 * (y * width + x);
+                return 0xFF000000 | (bytes[b + 2] & 0xFF) << 16 | (bytes[b + 1] & 0xFF) << 8 | (bytes[b] & 0xFF);
+            }
+            int c = shorts[y * width + x];
+            return 0xFF000000 | ((((c >> 11) & 0x1F) * 255 + 15) / 31) << 16 | ((((c >> 5) & 0x3F) * 255 + 31) / 63) << 8 | ((c & 0x1F) * 255 + 15) / 31;
+        }
+        
+        //TextureUtils.getColor on this level, packed and opaque
+        int sample(double u, double v, Filtering filter) {
+            double x = TextureUtils.wrap(width, u);
+            double y = TextureUtils.wrap(height, v);
+            if (filter == Filtering.OFF) {
+                return 0xFF000000 | texel(clampX((int) Math.round(x)), clampY((int) Math.round(y)));
+            }
+            int x0 = clampX((int) Math.floor(x));
+            int y0 = clampY((int) Math.floor(y));
+            int x1 = clampX((int) Math.ceil(x));
+            int y1 = clampY((int) Math.ceil(y));
+            double ax = 1 - Math.abs(x1 - x);
+            double ay = 1 - Math.abs(y1 - y);
+            int t = interpolate(texel(x0, y0), texel(x1, y0), ax);
+            int b = interpolate(texel(x0, y1), texel(x1, y1), ax);
+            return interpolate(t, b, ay);
+        }
+        
+        private int clampX(int x) {
+            return Math.min(Math.max(x, 0), width - 1);
+        }
+        
+        private int clampY(int y) {
+            return Math.min(Math.max(y, 0), height - 1);
+        }
+        
+        //Packed ARGB of count rows starting at row y
+        int[] readRows(int y, int count) {
+            int[] out = new int[count * width];
+            if (bytes != null) {
+                for (int i = 0, b = 3 * y * width; i < out.length; i++, b += 3) {
+                    out[i] = 0xFF000000 | (bytes[b + 2] & 0xFF) << 16 | (bytes[b + 1] & 0xFF) << 8 | (bytes[b] & 0xFF);
+                }
+            }
+            else if (shorts != null) {
+                for (int i = 0, s = y * width; i < out.length; i++, s++) {
+                    int c = shorts[s];
+                    int r = (c >> 11) & 0x1F;
+                    int g = (c >> 5) & 0x3F;
+                    int b = c & 0x1F;
+                    out[i] = 0xFF000000 | ((r * 255 + 15) / 31) << 16 | ((g * 255 + 31) / 63) << 8 | (b * 255 + 15) / 31;
+                }
+            }
+            else {
+                System.arraycopy(pixels, y * width, out, 0, out.length);
+                //Texels of a TYPE_INT_RGB texture have no alpha bits
+                if (storage == null && !image.getColorModel().hasAlpha()) {
+                    for (int i = 0; i < out.length; i++) {
+                        out[i] |= 0xFF000000;
+                    }
+                }
+            }
+            return out;
+        }
+        
+        void writeRows(int y, int count, int[] argb) {
+            int n = count * width;
+            if (bytes != null) {
+                for (int i = 0, b = 3 * y * width; i < n; i++, b += 3) {
+                    bytes[b] = (byte) argb[i];
+                    bytes[b + 1] = (byte) (argb[i] >> 8);
+                    bytes[b + 2] = (byte) (argb[i] >> 16);
+                }
+            }
+            else if (shorts != null) {
+                for (int i = 0, s = y * width; i < n; i++, s++) {
+                    int r = ((argb[i] >> 16) & 0xFF) * 31 + 127;
+                    int g = ((argb[i] >> 8) & 0xFF) * 63 + 127;
+                    int b = (argb[i] & 0xFF) * 31 + 127;
+                    shorts[s] = (short) ((r / 255) << 11 | (g / 255) << 5 | b / 255);
+                }
+            }
+            else {
+                System.arraycopy(argb, 0, pixels, y * width, n);
+            }
+        }
     }
 }
@@ -8,6 +8,10 @@ public class Model {
     private List<Point3D> vertices = new ArrayList<>();
     private List<Pair<Integer, Integer>> edges = new ArrayList<>();
     private List<Polygon> polygons = new ArrayList<>();
+    private int[] triangles;
+    private int[] chunkOffsets;
+    private TerrainLod lod;
+    private Mesh mesh;
     
     public Model(List<Point3D> vertices, List<Pair<Integer, Integer>> edges) {
         this.vertices.addAll(vertices);
@@ -20,6 +24,30 @@ public class Model {
         this.polygons.addAll(polygons);
     }
     
+    //Triangles are given as vertex indices, polygons are only created if somebody asks for them
+    public Model(List<Point3D> vertices, List<Pair<Integer, Integer>> edges, int[] triangles) {
+        this(vertices, edges, triangles, new int[]{0, triangles.length / 3});
+    }
+    
+    //Chunk offsets group consecutive triangles into chunks that are culled and sorted together, see Mesh
+    public Model(List<Point3D> vertices, List<Pair<Integer, Integer>> edges, int[] triangles, int[] chunkOffsets) {
+        if (triangles.length % 3 != 0) {
+            throw new IllegalArgumentException("Invalid triangle indices");
+        }
+        this.vertices.addAll(vertices);
+        this.edges.addAll(edges);
+        this.triangles = triangles;
+        this.chunkOffsets = chunkOffsets;
+        this.polygons = null;
+    }
+    
+    //Terrain drawn from its levels of detail, the vertex and edge lists stay empty and the full detail mesh is only
+    //built when it is asked for
+    public Model(TerrainLod lod) {
+        this.lod = lod;
+        this.polygons = null;
+    }
+    
     public List<Point3D> getVertices() {
         return vertices;
     }
@@ -29,10 +57,60 @@ public class Model {
         return edges;
     }
     
-    public List<Polygon> getPolygons() {
+    public synchronized List<Polygon> getPolygons() {
+        if (polygons == null) {
+            if (lod != null) {
+                Mesh mesh = getMesh();
+                double[] data = mesh.getVertices();
+                Point3D[] points = new Point3D[mesh.getVertexCount()];
+                for (int i = 0; i < points.length; i++) {
+                    int offset = Mesh.STRIDE * i;
+                    points[i] = new Point3D(data[offset], data[offset + 1], data[offset + 2], data[offset + 3], data[offset + 4]);
+                }
+                int[] indices = mesh.getTriangles();
+                polygons = new ArrayList<>(mesh.getTriangleCount());
+                for (int i = 0; i < indices.length; i += 3) {
+                    polygons.add(new Polygon(points[indices[i]], points[indices[i + 1]], points[indices[i + 2]]));
+                }
+            }
+            else {
+                polygons = new ArrayList<>(triangles.length / 3);
+                for (int i = 0; i < triangles.length; i += 3) {
+                    polygons.add(new Polygon(vertices.get(triangles[i]), vertices.get(triangles[i + 1]), vertices.get(triangles[i + 2])));
+                }
+            }
+        }
         return polygons;
     }
     
+    public synchronized Mesh getMesh() {
+        if (mesh == null) {
+            if (lod != null) {
+                mesh = lod.getFullMesh();
+            }
+            else if (triangles != null) {
+                double[] data = new double[Mesh.STRIDE * vertices.size()];
+                for (int i = 0; i < vertices.size(); i++) {
+                    Point3D p = vertices.get(i);
+                    data[Mesh.STRIDE * i] = p.getX();
+                    data[Mesh.STRIDE * i + 1] = p.getY();
+                    data[Mesh.STRIDE * i + 2] = p.getZ();
+                    data[Mesh.STRIDE * i + 3] = p.getU();
+                    data[Mesh.STRIDE * i + 4] = p.getV();
+                }
+                mesh = new Mesh(data, triangles, chunkOffsets);
+            }
+            else {
+                mesh = Mesh.fromPolygons(vertices, polygons);
+            }
+        }
+        return mesh;
+    }
+    
+    public TerrainLod getLod() {
+        return lod;
+    }
+    
     public static Model axis(double length) {
         return new Model(
                 Arrays.asList(new Point3D(length, 0, 0), new Point3D(-length, 0, 0), new Point3D(0, length, 0), new Point3D(0, -length, 0), new Point3D(0, 0, length), new Point3D(0, 0, -length)),
@@ -0,0 +1,144 @@
+package graphics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+//Writes a PNG row by row as strips arrive, only the current row and the deflate buffers are kept in memory.
+//Rows use the sub filter, which costs one pass and suits the smooth gradients of rendered terrain.
+public class PngStripWriter implements StripRenderer.StripSink, Closeable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 1 << 16;
+    
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int bytesPerPixel;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final byte[] row;
+    private final byte[] filtered;
+    private final byte[] compressed = new byte[CHUNK_SIZE];
+    private final CRC32 crc = new CRC32();
+    private int rowsWritten = 0;
+    
+    //Without alpha the pixels are stored as RGB and their alpha is dropped
+    public PngStripWriter(Path path, int width, int height, boolean alpha) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        bytesPerPixel = alpha ? 4 : 3;
+        row = new byte[width * bytesPerPixel];
+        filtered = new byte[1 + row.length];
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        
+        writeFully(ByteBuffer.wrap(SIGNATURE));
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width);
+        header.putInt(height);
+        //8 bits per channel, truecolor with or without alpha, deflate, adaptive filtering, no interlace
+        header.put((byte) 8);
+        header.put((byte) (alpha ? 6 : 2));
+        header.put((byte) 0);
+        header.put((byte) 0);
+        header.put((byte) 0);
+        writeChunk("IHDR", header.array(), header.position());
+    }
+    
+    @Override
+    public void write(int y, int height, int width, int[] pixels) throws IOException {
+        if (y != rowsWritten || width != this.width || rowsWritten + height > this.height) {
+            throw new IllegalArgumentException("Strip does not continue the image");
+        }
+        for (int j = 0; j < height; j++) {
+            int offset = j * width;
+            for (int i = 0; i < width; i++) {
+                int argb = pixels[offset + i];
+                int b = i * bytesPerPixel;
+                row[b] = (byte) (argb >> 16);
+                row[b + 1] = (byte) (argb >> 8);
+                row[b + 2] = (byte) argb;
+                if (alpha) {
+                    row[b + 3] = (byte) (argb >>> 24);
+                }
+            }
+            filtered[0] = 1;
+            for (int b = 0; b < row.length; b++) {
+                filtered[1 + b] = (byte) (row[b] - (b >= bytesPerPixel ? row[b - bytesPerPixel] : 0));
+            }
+            deflater.setInput(filtered);
+            while (!deflater.needsInput()) {
+                flush(deflater.deflate(compressed));
+            }
+        }
+        rowsWritten += height;
+    }
+    
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+    
+    //Finishes the image, fails if rows are missing
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (rowsWritten != height) {
+                throw new IOException("Image incomplete, " + rowsWritten + " of " + height + " rows written");
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                flush(deflater.deflate(compressed));
+            }
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            channel.close();
+        }
+    }
+    
+    private void flush(int length) throws IOException {
+        if (length > 0) {
+            writeChunk("IDAT", compressed, length);
+        }
+    }
+    
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(length);
+        header.put(typeBytes);
+        header.flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(data, 0, length));
+        ByteBuffer footer = ByteBuffer.allocate(4);
+        footer.putInt((int) crc.getValue());
+        footer.flip();
+        writeFully(footer);
+    }
+    
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+}
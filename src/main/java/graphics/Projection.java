@@ -0,0 +1,181 @@
+package graphics;
+
+import java.util.Objects;
+
+//Maps transformed model space points to continuous screen coordinates, pixel (x, y) covers [x, x + 1) x [y, y + 1).
+//Parallel mode is an oblique projection along angleA, otherwise coordinates can be warped by the distance from the origin.
+//The model origin lands in the middle of the screen unless a window of a larger screen is taken.
+public class Projection {
+    private final double scale;
+    private final int width;
+    private final int height;
+    private final boolean parallelMode;
+    private final double angleA;
+    private final double factorL;
+    private final double factorD;
+    private final boolean warpX;
+    private final boolean warpY;
+    private final boolean warpZ;
+    private final double obliqueX;
+    private final double obliqueY;
+    //Screen position of the model origin, without the half pixel offset
+    private final double originX;
+    private final double originY;
+    //Pixel of the whole screen where a window starts. Coordinates are shifted after projecting, subtracting whole pixels is
+    //exact, so every window computes the same values the whole screen would
+    private final int windowX;
+    private final int windowY;
+    private final int screenWidth;
+    private final int screenHeight;
+    
+    public Projection(double scale, int width, int height, boolean parallelMode, double angleA, double factorL, double factorD, boolean warpX, boolean warpY, boolean warpZ) {
+        this(scale, width, height, 0.5 * width, 0.5 * height, 0, 0, width, height, parallelMode, angleA, factorL, factorD, warpX, warpY, warpZ);
+    }
+    
+    private Projection(double scale, int width, int height, double originX, double originY, int windowX, int windowY, int screenWidth, int screenHeight, boolean parallelMode, double angleA, double factorL, double factorD, boolean warpX, boolean warpY, boolean warpZ) {
+        this.scale = scale;
+        this.width = width;
+        this.height = height;
+        this.parallelMode = parallelMode;
+        this.angleA = angleA;
+        this.factorL = factorL;
+        this.factorD = factorD;
+        this.warpX = warpX;
+        this.warpY = warpY;
+        this.warpZ = warpZ;
+        obliqueX = factorL * Math.cos(angleA);
+        obliqueY = factorL * Math.sin(angleA);
+        this.originX = originX;
+        this.originY = originY;
+        this.windowX = windowX;
+        this.windowY = windowY;
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+    }
+    
+    //The part of this screen starting at pixel (x, y) as a screen of its own, pixels keep their values
+    public Projection window(int x, int y, int width, int height) {
+        return new Projection(scale, width, height, originX, originY, windowX + x, windowY + y, screenWidth, screenHeight, parallelMode, angleA, factorL, factorD, warpX, warpY, warpZ);
+    }
+    
+    //Writes screen x and y of the point to out[offset] and out[offset + 1]
+    public void project(double x, double y, double z, boolean warp, double[] out, int offset) {
+        double px = x;
+        double py = y;
+        if (parallelMode) {
+            px = x + z * obliqueX;
+            py = y + z * obliqueY;
+        }
+        else {
+            if (warp) {
+                double w = 1 + (warpX ? Math.abs(x) / factorD : 0) + (warpY ? Math.abs(y) / factorD : 0) + (warpZ ? z / factorD : 0);
+                px = x / w;
+                py = y / w;
+            }
+        }
+        out[offset] = screenX(px);
+        out[offset + 1] = screenY(py);
+    }
+    
+    public double screenX(double x) {
+        return ((x / scale) + originX + 0.5) - windowX;
+    }
+    
+    public double screenY(double y) {
+        return (originY - (y / scale) + 0.5) - windowY;
+    }
+    
+    //Inverses of screenX and screenY
+    public double viewX(double sx) {
+        return (sx + windowX - originX - 0.5) * scale;
+    }
+    
+    public double viewY(double sy) {
+        return (originY + 0.5 - (sy + windowY)) * scale;
+    }
+    
+    public double getScale() {
+        return scale;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getWindowX() {
+        return windowX;
+    }
+    
+    public int getWindowY() {
+        return windowY;
+    }
+    
+    //Size of the whole screen, the same as the size unless this is a window
+    public int getScreenWidth() {
+        return screenWidth;
+    }
+    
+    public int getScreenHeight() {
+        return screenHeight;
+    }
+    
+    public boolean isParallelMode() {
+        return parallelMode;
+    }
+    
+    public double getAngleA() {
+        return angleA;
+    }
+    
+    public double getFactorL() {
+        return factorL;
+    }
+    
+    public double getFactorD() {
+        return factorD;
+    }
+    
+    public boolean isWarpX() {
+        return warpX;
+    }
+    
+    public boolean isWarpY() {
+        return warpY;
+    }
+    
+    public boolean isWarpZ() {
+        return warpZ;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Projection that = (Projection) o;
+        return Double.compare(that.scale, scale) == 0 &&
+                width == that.width &&
+                height == that.height &&
+                Double.compare(that.originX, originX) == 0 &&
+                Double.compare(that.originY, originY) == 0 &&
+                windowX == that.windowX &&
+                windowY == that.windowY &&
+                screenWidth == that.screenWidth &&
+                screenHeight == that.screenHeight &&
+                parallelMode == that.parallelMode &&
+                Double.compare(that.angleA, angleA) == 0 &&
+                Double.compare(that.factorL, factorL) == 0 &&
+                Double.compare(that.factorD, factorD) == 0 &&
+                warpX == that.warpX &&
+                warpY == that.warpY &&
+                warpZ == that.warpZ;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(scale, width, height, originX, originY, windowX, windowY, screenWidth, screenHeight, parallelMode, angleA, factorL, factorD, warpX, warpY, warpZ);
+    }
+}
@@ -0,0 +1,185 @@
+package graphics;
+
+//Half-space triangle rasterizer working in fixed point screen coordinates.
+//Pixels are sampled at their centers and the top-left fill rule makes triangles sharing an edge cover each pixel once.
+//Attributes are linear in screen space and are stepped per pixel and per row from their plane equations.
+public class Rasterizer {
+    public static final int SUBPIXEL_BITS = 8;
+    public static final int MAX_ATTRIBUTES = 8;
+    private static final long ONE = 1L << SUBPIXEL_BITS;
+    private static final long HALF = ONE >> 1;
+    private static final double MAX_COORDINATE = 1 << 22;
+    
+    private final double[] gradientX = new double[MAX_ATTRIBUTES];
+    private final double[] gradientY = new double[MAX_ATTRIBUTES];
+    private final double[] origin = new double[MAX_ATTRIBUTES];
+    private final double[] rowValues = new double[MAX_ATTRIBUTES];
+    private final double[] values = new double[MAX_ATTRIBUTES];
+    private int attributeCount;
+    
+    private long x0;
+    private long y0;
+    private long x1;
+    private long y1;
+    private long x2;
+    private long y2;
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    private double area;
+    
+    //Attributes are laid out per vertex: all values of the first vertex, then the second one, then the third one.
+    //Returns false if the triangle covers no area and should not be rasterized.
+    public boolean setup(double ax, double ay, double bx, double by, double cx, double cy, double[] attributes, int attributeCount) {
+        if (attributeCount > MAX_ATTRIBUTES) {
+            throw new IllegalArgumentException("Too many attributes");
+        }
+        if (!inRange(ax) || !inRange(ay) || !inRange(bx) || !inRange(by) || !inRange(cx) || !inRange(cy)) {
+            return false;
+        }
+        this.attributeCount = attributeCount;
+        
+        x0 = Math.round(ax * ONE);
+        y0 = Math.round(ay * ONE);
+        long px1 = Math.round(bx * ONE);
+        long py1 = Math.round(by * ONE);
+        long px2 = Math.round(cx * ONE);
+        long py2 = Math.round(cy * ONE);
+        
+        long orientation = (px1 - x0) * (py2 - y0) - (py1 - y0) * (px2 - x0);
+        if (orientation == 0) {
+            return false;
+        }
+        //Keep a single winding so the edge functions are positive inside
+        if (orientation > 0) {
+            x1 = px1;
+            y1 = py1;
+            x2 = px2;
+            y2 = py2;
+        }
+        else {
+            x1 = px2;
+            y1 = py2;
+            x2 = px1;
+            y2 = py1;
+        }
+        
+        minX = Math.min(Math.min(ax, bx), cx);
+        minY = Math.min(Math.min(ay, by), cy);
+        maxX = Math.max(Math.max(ax, bx), cx);
+        maxY = Math.max(Math.max(ay, by), cy);
+        
+        //Attribute planes come from the unrounded positions
+        double det = (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+        area = det / 2;
+        for (int i = 0; i < attributeCount; i++) {
+            double a0 = attributes[i];
+            double a1 = attributes[attributeCount + i];
+            double a2 = attributes[2 * attributeCount + i];
+            gradientX[i] = ((a1 - a0) * (cy - ay) - (a2 - a0) * (by - ay)) / det;
+            gradientY[i] = ((a2 - a0) * (bx - ax) - (a1 - a0) * (cx - ax)) / det;
+            origin[i] = a0 - gradientX[i] * ax - gradientY[i] * ay;
+        }
+        return true;
+    }
+    
+    public void rasterize(int clipX, int clipY, int clipWidth, int clipHeight, FragmentShader shader) {
+        int startX = Math.max(clipX, (int) Math.floor(minX));
+        int startY = Math.max(clipY, (int) Math.floor(minY));
+        int endX = Math.min(clipX + clipWidth - 1, (int) Math.ceil(maxX));
+        int endY = Math.min(clipY + clipHeight - 1, (int) Math.ceil(maxY));
+        if (startX > endX || startY > endY) {
+            return;
+        }
+        
+        //Edge function steps, E(x + 1) = E(x) + a and E(y + 1) = E(y) + b
+        long a01 = (y0 - y1) * ONE;
+        long b01 = (x1 - x0) * ONE;
+        long a12 = (y1 - y2) * ONE;
+        long b12 = (x2 - x1) * ONE;
+        long a20 = (y2 - y0) * ONE;
+        long b20 = (x0 - x2) * ONE;
+        
+        //Pixels exactly on an edge belong to the triangle only for top and left edges
+        long bias01 = isTopLeft(x0, y0, x1, y1) ? 0 : -1;
+        long bias12 = isTopLeft(x1, y1, x2, y2) ? 0 : -1;
+        long bias20 = isTopLeft(x2, y2, x0, y0) ? 0 : -1;
+        
+        long px = startX * ONE + HALF;
+        long py = startY * ONE + HALF;
+        long row01 = edge(x0, y0, x1, y1, px, py) + bias01;
+        long row12 = edge(x1, y1, x2, y2, px, py) + bias12;
+        long row20 = edge(x2, y2, x0, y0, px, py) + bias20;
+        
+        double sampleX = startX + 0.5;
+        double sampleY = startY + 0.5;
+        for (int i = 0; i < attributeCount; i++) {
+            rowValues[i] = origin[i] + gradientX[i] * sampleX + gradientY[i] * sampleY;
+        }
+        
+        for (int y = startY; y <= endY; y++) {
+            long e01 = row01;
+            long e12 = row12;
+            long e20 = row20;
+            for (int i = 0; i < attributeCount; i++) {
+                values[i] = rowValues[i];
+            }
+            boolean entered = false;
+            for (int x = startX; x <= endX; x++) {
+                if ((e01 | e12 | e20) >= 0) {
+                    entered = true;
+                    shader.shade(x, y, values);
+                }
+                else {
+                    //Triangles are convex, once a row is left there is nothing more to cover
+                    if (entered) {
+                        break;
+                    }
+                }
+                e01 += a01;
+                e12 += a12;
+                e20 += a20;
+                for (int i = 0; i < attributeCount; i++) {
+                    values[i] += gradientX[i];
+                }
+            }
+            row01 += b01;
+            row12 += b12;
+            row20 += b20;
+            for (int i = 0; i < attributeCount; i++) {
+                rowValues[i] += gradientY[i];
+            }
+        }
+    }
+    
+    public double getGradientX(int attribute) {
+        return gradientX[attribute];
+    }
+    
+    public double getGradientY(int attribute) {
+        return gradientY[attribute];
+    }
+    
+    //Signed area of the triangle as it was passed to setup, in square pixels
+    public double getArea() {
+        return area;
+    }
+    
+    private static long edge(long ax, long ay, long bx, long by, long px, long py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+    
+    //Screen y grows downwards, with the winding used here top edges point right and left edges point up
+    private static boolean isTopLeft(long ax, long ay, long bx, long by) {
+        return (ay == by && bx > ax) || by < ay;
+    }
+    
+    private static boolean inRange(double value) {
+        return value > -MAX_COORDINATE && value < MAX_COORDINATE;
+    }
+    
+    public interface FragmentShader {
+        void shade(int x, int y, double[] attributes);
+    }
+}
@@ -0,0 +1,61 @@
+package graphics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//Writes strips uncompressed into a file laid out like a single strip TIFF body: the ASCII magic "ARGB", width and height
+//as big endian ints, then every row as big endian ARGB ints. Rows have fixed positions, so strips are written wherever
+//they land as they finish, from any thread.
+public class RawStripWriter implements StripRenderer.StripSink, Closeable {
+    public static final int HEADER_SIZE = 12;
+    
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    
+    public RawStripWriter(Path path, int width, int height) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.width = width;
+        this.height = height;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(new byte[]{'A', 'R', 'G', 'B'});
+        header.putInt(width);
+        header.putInt(height);
+        header.flip();
+        writeFully(header, 0);
+    }
+    
+    @Override
+    public void write(int y, int height, int width, int[] pixels) throws IOException {
+        if (width != this.width || y < 0 || y + height > this.height) {
+            throw new IllegalArgumentException("Strip outside of the image");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 * width * height);
+        buffer.asIntBuffer().put(pixels, 0, width * height);
+        writeFully(buffer, HEADER_SIZE + 4L * width * y);
+    }
+    
+    @Override
+    public boolean isOrdered() {
+        return false;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    //Positional writes leave the channel position alone, so concurrent strips do not interfere
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package graphics;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+//Renders frames on its own thread into a back buffer and swaps finished frames to the front.
+//A request only replaces the pending settings, so a newer request supersedes the frame being rendered:
+//the stale frame is cancelled and never shown.
+//Frames are progressive: coarse passes with a smaller frame, a coarser mesh and no mipmapping are shown first
+//and refined until the full quality pass is done.
+public class RenderLoop {
+    //Frame size divisor and mesh resolution limit of the coarse passes, from coarsest to finest
+    private static final int[] PASS_FACTORS = {4, 2};
+    private static final int[] PASS_MESH_RESOLUTIONS = {64, 256};
+    
+    private final SceneRenderer renderer = new SceneRenderer();
+    private final FrameListener listener;
+    private final Object lock = new Object();
+    private final Object frameLock = new Object();
+    
+    private FrameBuffer front = new FrameBuffer();
+    //Buffers off screen, used by the render thread only. Passes take one of their own size, so buffers are only
+    //reallocated when the frame size changes and not on every swap between pass sizes
+    private final List<FrameBuffer> spares = new ArrayList<>();
+    private RenderSettings frontSettings;
+    
+    private volatile RenderSettings pending;
+    private volatile boolean stopped = false;
+    private volatile boolean progressive = true;
+    private Thread thread;
+    
+    private volatile long completedFrames = 0;
+    private volatile long supersededFrames = 0;
+    private volatile long lastFrameNanos = 0;
+    private volatile long firstPassNanos = 0;
+    
+    public RenderLoop(FrameListener listener) {
+        this.listener = listener;
+    }
+    
+    public void request(RenderSettings settings) {
+        synchronized (lock) {
+            if (stopped) {
+                throw new IllegalStateException("Render loop is stopped");
+            }
+            pending = settings;
+            if (thread == null) {
+                thread = new Thread(this::run, "render-loop");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            lock.notifyAll();
+        }
+    }
+    
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+    
+    //Draws the latest finished frame scaled to the given size, does nothing before the first one is done
+    public void present(Graphics g, int x, int y, int width, int height) {
+        synchronized (frameLock) {
+            if (frontSettings == null) {
+                return;
+            }
+            if (front.getWidth() == width && front.getHeight() == height) {
+                g.drawImage(front.getImage(), x, y, null);
+            }
+            else {
+                Graphics2D g2 = (Graphics2D) g.create();
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2.drawImage(front.getImage(), x, y, width, height, 0, 0, front.getWidth(), front.getHeight(), null);
+                g2.dispose();
+            }
+        }
+    }
+    
+    //Coarse passes first, the requested settings last
+    private List<RenderSettings> passes(RenderSettings settings) {
+        List<RenderSettings> passes = new ArrayList<>();
+        if (progressive) {
+            for (int i = 0; i < PASS_FACTORS.length; i++) {
+                if (settings.getWidth() >= PASS_FACTORS[i] && settings.getHeight() >= PASS_FACTORS[i]) {
+                    passes.add(settings.coarse(PASS_FACTORS[i], PASS_MESH_RESOLUTIONS[i]));
+                }
+            }
+        }
+        passes.add(settings);
+        return passes;
+    }
+    
+    private void run() {
+        while (true) {
+            RenderSettings settings;
+            synchronized (lock) {
+                while (pending == null && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                settings = pending;
+                pending = null;
+            }
+            
+            long start = System.nanoTime();
+            List<RenderSettings> passes;
+            try {
+                passes = passes(settings);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                continue;
+            }
+            for (int i = 0; i < passes.size(); i++) {
+                RenderSettings pass = passes.get(i);
+                FrameBuffer back = acquire(pass, passes);
+                boolean done;
+                try {
+                    done = renderer.render(pass, back, () -> pending != null || stopped);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    spares.add(back);
+                    e.printStackTrace();
+                    break;
+                }
+                if (!done) {
+                    spares.add(back);
+                    supersededFrames++;
+                    break;
+                }
+                
+                synchronized (frameLock) {
+                    spares.add(front);
+                    front = back;
+                    frontSettings = pass;
+                }
+                if (i == 0) {
+                    firstPassNanos = System.nanoTime() - start;
+                }
+                listener.frameReady(pass);
+                if (i == passes.size() - 1) {
+                    lastFrameNanos = System.nanoTime() - start;
+                    completedFrames++;
+                    listener.frameCompleted(pass, renderer.getTextureState());
+                }
+            }
+        }
+    }
+    
+    //A spare of the pass size, else one of a size no pass uses any more, else a new one. The renderer resizes it
+    private FrameBuffer acquire(RenderSettings pass, List<RenderSettings> passes) {
+        FrameBuffer stale = null;
+        for (int i = 0; i < spares.size(); i++) {
+            FrameBuffer buffer = spares.get(i);
+            if (buffer.getWidth() == pass.getWidth() && buffer.getHeight() == pass.getHeight()) {
+                return spares.remove(i);
+            }
+            if (stale == null && !hasSize(passes, buffer)) {
+                stale = buffer;
+            }
+        }
+        if (stale != null) {
+            spares.remove(stale);
+            return stale;
+        }
+        return new FrameBuffer();
+    }
+    
+    private static boolean hasSize(List<RenderSettings> passes, FrameBuffer buffer) {
+        for (RenderSettings pass : passes) {
+            if (buffer.getWidth() == pass.getWidth() && buffer.getHeight() == pass.getHeight()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public RenderSettings getFrontSettings() {
+        synchronized (frameLock) {
+            return frontSettings;
+        }
+    }
+    
+    public long getCompletedFrames() {
+        return completedFrames;
+    }
+    
+    public long getSupersededFrames() {
+        return supersededFrames;
+    }
+    
+    //Time from picking up the last request until its full quality pass was shown
+    public double getLastFrameMillis() {
+        return lastFrameNanos / 1e6;
+    }
+    
+    //Time from picking up the last request until its first pass was shown
+    public double getFirstPassMillis() {
+        return firstPassNanos / 1e6;
+    }
+    
+    public boolean isProgressive() {
+        return progressive;
+    }
+    
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+    
+    public interface FrameListener {
+        //Called on the render thread after a frame or a pass of it was swapped to the front
+        void frameReady(RenderSettings settings);
+        
+        //Called on the render thread after the full quality pass of a frame was swapped to the front
+        default void frameCompleted(RenderSettings settings, String textureState) {}
+    }
+}
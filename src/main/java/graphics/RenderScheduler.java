@@ -0,0 +1,290 @@
+package graphics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Application-wide worker pool shared by rendering and background work.
+//Interactive tasks always run before queued background tasks, and background tasks are limited to a part of the threads
+//so a frame never waits for a whole pool of mipmap or texture jobs to finish.
+public class RenderScheduler {
+    public static final String THREADS_PROPERTY = "topography.threads";
+    public static final String BACKGROUND_THREADS_PROPERTY = "topography.backgroundThreads";
+    
+    private static RenderScheduler instance;
+    
+    private final ThreadPoolExecutor executor;
+    private final Queue<QueueEntry> backgroundBacklog = new ArrayDeque<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger[] queued = new AtomicInteger[Priority.values().length];
+    private final AtomicInteger[] active = new AtomicInteger[Priority.values().length];
+    private final AtomicLong[] completed = new AtomicLong[Priority.values().length];
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile int threads;
+    private volatile int backgroundThreads;
+    private int runningBackground = 0;
+    
+    public RenderScheduler(int threads, int backgroundThreads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count");
+        }
+        this.threads = threads;
+        this.backgroundThreads = clampBackground(backgroundThreads, threads);
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = new AtomicInteger();
+            active[i] = new AtomicInteger();
+            completed[i] = new AtomicLong();
+        }
+        
+        ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+            Thread t = defaultFactory.newThread(r);
+            t.setName("render-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+    
+    public static synchronized RenderScheduler getInstance() {
+        if (instance == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int threads = Integer.getInteger(THREADS_PROPERTY, cores);
+            int background = Integer.getInteger(BACKGROUND_THREADS_PROPERTY, Math.max(1, threads / 2));
+            instance = new RenderScheduler(Math.max(1, threads), background);
+        }
+        return instance;
+    }
+    
+    public <T> Future<T> submit(Priority priority, Callable<T> callable) {
+        Task<T> task = new Task<>(priority, callable);
+        enqueue(task);
+        return task;
+    }
+    
+    public Future<?> submit(Priority priority, Runnable runnable) {
+        return submit(priority, Executors.callable(runnable));
+    }
+    
+    //Runs all tasks and waits for them. The calling thread works through the list too, so this is safe to call from a
+    //task already running in the scheduler.
+    public void invokeAll(Priority priority, List<? extends Runnable> runnables) throws InterruptedException {
+        List<Task<Object>> tasks = new ArrayList<>(runnables.size());
+        for (Runnable runnable : runnables) {
+            Task<Object> task = new Task<>(priority, Executors.callable(runnable));
+            tasks.add(task);
+            enqueue(task);
+        }
+        for (Task<Object> task : tasks) {
+            task.run();
+        }
+        try {
+            for (Task<Object> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            for (Task<Object> task : tasks) {
+                task.cancel(false);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    private void enqueue(Task<?> task) {
+        queued[task.priority.ordinal()].incrementAndGet();
+        QueueEntry entry = new QueueEntry(task, sequence.getAndIncrement());
+        if (task.priority == Priority.BACKGROUND) {
+            synchronized (backgroundBacklog) {
+                backgroundBacklog.add(entry);
+            }
+            dispatchBackground();
+        }
+        else {
+            executor.execute(entry);
+        }
+    }
+    
+    private void dispatchBackground() {
+        synchronized (backgroundBacklog) {
+            while (runningBackground < backgroundThreads && !backgroundBacklog.isEmpty()) {
+                runningBackground++;
+                executor.execute(backgroundBacklog.poll());
+            }
+        }
+    }
+    
+    private void releaseBackground() {
+        synchronized (backgroundBacklog) {
+            runningBackground--;
+        }
+        dispatchBackground();
+    }
+    
+    public synchronized void setThreadCount(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count");
+        }
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        }
+        else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        this.threads = threads;
+        setBackgroundThreadCount(backgroundThreads);
+    }
+    
+    public synchronized void setBackgroundThreadCount(int backgroundThreads) {
+        synchronized (backgroundBacklog) {
+            this.backgroundThreads = clampBackground(backgroundThreads, threads);
+        }
+        dispatchBackground();
+    }
+    
+    private static int clampBackground(int backgroundThreads, int threads) {
+        return Math.max(1, Math.min(backgroundThreads, threads));
+    }
+    
+    public int getThreadCount() {
+        return threads;
+    }
+    
+    public int getBackgroundThreadCount() {
+        return backgroundThreads;
+    }
+    
+    public int getQueueDepth() {
+        int total = 0;
+        for (Priority priority : Priority.values()) {
+            total += getQueueDepth(priority);
+        }
+        return total;
+    }
+    
+    public int getQueueDepth(Priority priority) {
+        return queued[priority.ordinal()].get();
+    }
+    
+    public int getActiveCount(Priority priority) {
+        return active[priority.ordinal()].get();
+    }
+    
+    public long getCompletedCount(Priority priority) {
+        return completed[priority.ordinal()].get();
+    }
+    
+    //Fraction of threads busy right now
+    public double getUtilization() {
+        int running = 0;
+        for (AtomicInteger count : active) {
+            running += count.get();
+        }
+        return Math.min(1.0, running / (double) threads);
+    }
+    
+    //Fraction of the available thread time spent running tasks since the scheduler was created
+    public double getAverageUtilization() {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, busyNanos.get() / ((double) elapsed * threads));
+    }
+    
+    @Override
+    public String toString() {
+        return "RenderScheduler{" +
+                "threads=" + threads +
+                ", backgroundThreads=" + backgroundThreads +
+                ", queuedInteractive=" + getQueueDepth(Priority.INTERACTIVE) +
+                ", queuedBackground=" + getQueueDepth(Priority.BACKGROUND) +
+                ", utilization=" + getUtilization() +
+                '}';
+    }
+    
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+    
+    private class Task<T> extends FutureTask<T> {
+        private final Priority priority;
+        private final AtomicBoolean started = new AtomicBoolean();
+        
+        private Task(Priority priority, Callable<T> callable) {
+            super(callable);
+            this.priority = priority;
+        }
+        
+        @Override
+        public void run() {
+            //A task can be reached both by a worker and by a thread helping in invokeAll, only the first one runs it
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            queued[priority.ordinal()].decrementAndGet();
+            active[priority.ordinal()].incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                super.run();
+            } finally {
+                busyNanos.addAndGet(System.nanoTime() - start);
+                active[priority.ordinal()].decrementAndGet();
+                completed[priority.ordinal()].incrementAndGet();
+            }
+        }
+    }
+    
+    private class QueueEntry implements Runnable, Comparable<QueueEntry> {
+        private final Task<?> task;
+        private final long order;
+        
+        private QueueEntry(Task<?> task, long order) {
+            this.task = task;
+            this.order = order;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                if (task.priority == Priority.BACKGROUND) {
+                    releaseBackground();
+                }
+            }
+        }
+        
+        @Override
+        public int compareTo(QueueEntry o) {
+            if (task.priority != o.task.priority) {
+                return task.priority.compareTo(o.task.priority);
+            }
+            return Long.compare(order, o.order);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package graphics;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+//Everything a frame depends on. Two equal settings produce the same frame, so they are used as the key of the frame cache.
+//Models, function caches and images are compared by identity, transforms are copied when added and compared by value.
+public class RenderSettings {
+    private List<ModelEntry> models = new ArrayList<>();
+    private Projection projection = new Projection(1.0, 0, 0, false, 0.0, 0.5, 10, true, true, true);
+    
+    private ContourPlotDisplay3D.FunctionCache cache;
+    private boolean cacheValid = false;
+    private Mipmapper image;
+    private int textureResolution = 512;
+    private TextureUtils.Filtering filtering = TextureUtils.Filtering.ANISOTROPIC;
+    private boolean useMipmap = true;
+    private double mipmapBiasU = 0;
+    private double mipmapBiasV = 0;
+    
+    private boolean drawFaces = true;
+    private boolean showOutline = false;
+    private boolean backFaceCulling = false;
+    //Largest terrain error allowed in pixels, 0 always draws the full detail mesh
+    private double lodTolerance = 1;
+    //Terrain is ray marched against its height grid instead of rasterized
+    private boolean rayMarching = false;
+    private int background = 0;
+    
+    private boolean drawContours = true;
+    private int contours = 20;
+    private double contourOffset = 0;
+    private double contourWidth = 1;
+    private Color contourColor = Color.BLACK;
+    
+    public void addModel(Model model, Transform3D transform) {
+        models.add(new ModelEntry(model, transform));
+    }
+    
+    public RenderSettings copy() {
+        RenderSettings settings = new RenderSettings();
+        for (ModelEntry entry : models) {
+            settings.addModel(entry.model, entry.transform);
+        }
+        settings.projection = projection;
+        settings.cache = cache;
+        settings.cacheValid = cacheValid;
+        settings.image = image;
+        settings.textureResolution = textureResolution;
+        settings.filtering = filtering;
+        settings.useMipmap = useMipmap;
+        settings.mipmapBiasU = mipmapBiasU;
+        settings.mipmapBiasV = mipmapBiasV;
+        settings.drawFaces = drawFaces;
+        settings.showOutline = showOutline;
+        settings.backFaceCulling = backFaceCulling;
+        settings.lodTolerance = lodTolerance;
+        settings.rayMarching = rayMarching;
+        settings.background = background;
+        settings.drawContours = drawContours;
+        settings.contours = contours;
+        settings.contourOffset = contourOffset;
+        settings.contourWidth = contourWidth;
+        settings.contourColor = contourColor;
+        return settings;
+    }
+    
+    //Cheap preview of the same scene: the frame is smaller by factor in both directions, mipmapping is off and
+    //the generated texture is smaller by the square of factor. The terrain picks its levels of detail with a tolerance
+    //larger by factor, without levels of detail its mesh has at most maxMeshResolution cells per side
+    public RenderSettings coarse(int factor, int maxMeshResolution) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Invalid factor");
+        }
+        RenderSettings settings = copy();
+        Projection p = projection;
+        settings.projection = new Projection(p.getScale() * factor, Math.max(1, p.getWidth() / factor), Math.max(1, p.getHeight() / factor),
+                p.isParallelMode(), p.getAngleA(), p.getFactorL(), p.getFactorD(), p.isWarpX(), p.isWarpY(), p.isWarpZ());
+        settings.useMipmap = false;
+        settings.textureResolution = Math.max(16, textureResolution / (factor * factor));
+        //Ray marching costs per pixel, the smaller frame alone makes it cheap and the terrain stays the same
+        if (cacheValid && !rayMarching && lodTolerance > 0) {
+            settings.lodTolerance = lodTolerance * factor;
+        }
+        else if (cacheValid && !rayMarching) {
+            settings.models.clear();
+            for (ModelEntry entry : models) {
+                settings.addModel(cache.isModel(entry.model) ? cache.getModel(maxMeshResolution) : entry.model, entry.transform);
+            }
+        }
+        return settings;
+    }
+    
+    public List<ModelEntry> getModels() {
+        return Collections.unmodifiableList(models);
+    }
+    
+    public Projection getProjection() {
+        return projection;
+    }
+    
+    public void setProjection(Projection projection) {
+        this.projection = projection;
+    }
+    
+    public int getWidth() {
+        return projection.getWidth();
+    }
+    
+    public int getHeight() {
+        return projection.getHeight();
+    }
+    
+    public ContourPlotDisplay3D.FunctionCache getCache() {
+        return cache;
+    }
+    
+    public void setCache(ContourPlotDisplay3D.FunctionCache cache) {
+        this.cache = cache;
+        this.cacheValid = cache != null && cache.isValid();
+    }
+    
+    public boolean isCacheValid() {
+        return cacheValid;
+    }
+    
+    public Mipmapper getImage() {
+        return image;
+    }
+    
+    public void setImage(Mipmapper image) {
+        this.image = image;
+    }
+    
+    public int getTextureResolution() {
+        return textureResolution;
+    }
+    
+    public void setTextureResolution(int textureResolution) {
+        this.textureResolution = textureResolution;
+    }
+    
+    public TextureUtils.Filtering getFiltering() {
+        return filtering;
+    }
+    
+    public void setFiltering(TextureUtils.Filtering filtering) {
+        this.filtering = filtering;
+    }
+    
+    public boolean isUseMipmap() {
+        return useMipmap;
+    }
+    
+    public void setUseMipmap(boolean useMipmap) {
+        this.useMipmap = useMipmap;
+    }
+    
+    public double getMipmapBiasU() {
+        return mipmapBiasU;
+    }
+    
+    public void setMipmapBiasU(double mipmapBiasU) {
+        this.mipmapBiasU = mipmapBiasU;
+    }
+    
+    public double getMipmapBiasV() {
+        return mipmapBiasV;
+    }
+    
+    public void setMipmapBiasV(double mipmapBiasV) {
+        this.mipmapBiasV = mipmapBiasV;
+    }
+    
+    public boolean isDrawFaces() {
+        return drawFaces;
+    }
+    
+    public void setDrawFaces(boolean drawFaces) {
+        this.drawFaces = drawFaces;
+    }
+    
+    public boolean isShowOutline() {
+        return showOutline;
+    }
+    
+    public void setShowOutline(boolean showOutline) {
+        this.showOutline = showOutline;
+    }
+    
+    public boolean isBackFaceCulling() {
+        return backFaceCulling;
+    }
+    
+    public void setBackFaceCulling(boolean backFaceCulling) {
+        this.backFaceCulling = backFaceCulling;
+    }
+    
+    public double getLodTolerance() {
+        return lodTolerance;
+    }
+    
+    public void setLodTolerance(double lodTolerance) {
+        this.lodTolerance = lodTolerance;
+    }
+    
+    public boolean isRayMarching() {
+        return rayMarching;
+    }
+    
+    public void setRayMarching(boolean rayMarching) {
+        this.rayMarching = rayMarching;
+    }
+    
+    public int getBackground() {
+        return background;
+    }
+    
+    public void setBackground(int background) {
+        this.background = background;
+    }
+    
+    public boolean isDrawContours() {
+        return drawContours;
+    }
+    
+    public void setDrawContours(boolean drawContours) {
+        this.drawContours = drawContours;
+    }
+    
+    public int getContours() {
+        return contours;
+    }
+    
+    public void setContours(int contours) {
+        this.contours = contours;
+    }
+    
+    public double getContourOffset() {
+        return contourOffset;
+    }
+    
+    public void setContourOffset(double contourOffset) {
+        this.contourOffset = contourOffset;
+    }
+    
+    public double getContourWidth() {
+        return contourWidth;
+    }
+    
+    public void setContourWidth(double contourWidth) {
+        this.contourWidth = contourWidth;
+    }
+    
+    public Color getContourColor() {
+        return contourColor;
+    }
+    
+    public void setContourColor(Color contourColor) {
+        this.contourColor = contourColor;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RenderSettings that = (RenderSettings) o;
+        return cache == that.cache &&
+                cacheValid == that.cacheValid &&
+                image == that.image &&
+                textureResolution == that.textureResolution &&
+                useMipmap == that.useMipmap &&
+                Double.compare(that.mipmapBiasU, mipmapBiasU) == 0 &&
+                Double.compare(that.mipmapBiasV, mipmapBiasV) == 0 &&
+                drawFaces == that.drawFaces &&
+                showOutline == that.showOutline &&
+                backFaceCulling == that.backFaceCulling &&
+                Double.compare(that.lodTolerance, lodTolerance) == 0 &&
+                rayMarching == that.rayMarching &&
+                background == that.background &&
+                drawContours == that.drawContours &&
+                contours == that.contours &&
+                Double.compare(that.contourOffset, contourOffset) == 0 &&
+                Double.compare(that.contourWidth, contourWidth) == 0 &&
+                filtering == that.filtering &&
+                Objects.equals(contourColor, that.contourColor) &&
+                Objects.equals(projection, that.projection) &&
+                models.equals(that.models);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(models, projection, System.identityHashCode(cache), cacheValid, System.identityHashCode(image), textureResolution, filtering, useMipmap, mipmapBiasU, mipmapBiasV,
+                drawFaces, showOutline, backFaceCulling, lodTolerance, rayMarching, background, drawContours, contours, contourOffset, contourWidth, contourColor);
+    }
+    
+    public static class ModelEntry {
+        private final Model model;
+        private final Transform3D transform;
+        
+        private ModelEntry(Model model, Transform3D transform) {
+            this.model = model;
+            this.transform = new Transform3D(transform.offset.copy(), transform.rotation.copy(), transform.scale.copy());
+        }
+        
+        public Model getModel() {
+            return model;
+        }
+        
+        public Transform3D getTransform() {
+            return transform;
+        }
+        
+        private double[] values() {
+            return new double[]{
+                    transform.offset.getX(), transform.offset.getY(), transform.offset.getZ(),
+                    transform.rotation.getX(), transform.rotation.getY(), transform.rotation.getZ(),
+                    transform.scale.getX(), transform.scale.getY(), transform.scale.getZ()
+            };
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ModelEntry that = (ModelEntry) o;
+            return model == that.model && Arrays.equals(values(), that.values());
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(model) + Arrays.hashCode(values());
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+//Renders the scene described by RenderSettings into a frame buffer. Nothing here touches Swing, so frames can be rendered
+//on any thread, but one renderer is only used by one thread at a time.
+public class SceneRenderer {
+    private static final Color GRID_COLOR = Color.WHITE;
+    private static final Color MODEL_COLOR = new Color(0xff5599);
+    
+    private static final Model AXIS = Model.axis(10000);
+    private static final double LOG_2 = Math.log(2);
+    
+    private final TileRenderer tileRenderer = new TileRenderer();
+    private final HeightfieldRenderer heightfieldRenderer = new HeightfieldRenderer();
+    //Progressive passes use smaller textures, so a few are kept to cover all passes of a frame
+    private final Memo<List<Object>, Mipmapper> textures;
+    //How the texture of the last frame was found, read after the frame by the thread that rendered it
+    private String textureState = "Texture: none";
+    
+    public SceneRenderer() {
+        this(new Memo<>("Texture", 4));
+    }
+    
+    //Renderers used side by side can share their textures, the memo is thread safe
+    public SceneRenderer(Memo<List<Object>, Mipmapper> textures) {
+        this.textures = textures;
+    }
+    
+    public void render(RenderSettings settings, FrameBuffer frame) throws InterruptedException {
+        render(settings, frame, () -> false);
+    }
+    
+    //Returns false if rendering was stopped because cancelled returned true, the frame is incomplete then
+    public boolean render(RenderSettings settings, FrameBuffer frame, BooleanSupplier cancelled) throws InterruptedException {
+        frame.resize(settings.getWidth(), settings.getHeight());
+        frame.clear(0);
+        
+        Mipmapper mipmapper = createTexture(settings);
+        drawModel(settings, frame, AXIS, new Transform3D(), GRID_COLOR, false, mipmapper, cancelled);
+        for (RenderSettings.ModelEntry entry : settings.getModels()) {
+            if (cancelled.getAsBoolean()) {
+                return false;
+            }
+            if (settings.isRayMarching() && settings.isCacheValid() && settings.getCache().isModel(entry.getModel())) {
+                heightfieldRenderer.render(settings, frame, entry.getTransform(), mipmapper, cancelled);
+            }
+            else {
+                drawModel(settings, frame, entry.getModel(), entry.getTransform(), MODEL_COLOR, true, mipmapper, cancelled);
+            }
+        }
+        return !cancelled.getAsBoolean();
+    }
+    
+    //Texture of the terrain: the selected image, one generated from the function, or a placeholder without a function
+    private Mipmapper createTexture(RenderSettings settings) {
+        if (settings.isCacheValid() && settings.getImage() != null) {
+            textureState = "Texture: selected image";
+            return settings.getImage();
+        }
+        //Generated textures only change with the function and the resolution, the placeholder never does
+        ContourPlotDisplay3D.FunctionCache cache = settings.isCacheValid() ? settings.getCache() : null;
+        int resolution = cache != null ? settings.getTextureResolution() : 0;
+        Mipmapper mipmapper = textures.get(Arrays.asList(cache, resolution), key -> {
+            BufferedImage texture;
+            if (cache == null) {
+                texture = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+                WritableRaster r = texture.getRaster();
+                int[] pixelVector = new int[20 * 20];
+                for (int i = 0; i < pixelVector.length; i++) {
+                    pixelVector[i] = ContourPlotDisplay3D.interpolate(ContourPlotDisplay3D.interpolate(Color.BLUE, Color.RED, (i % 20) / 20.0), ContourPlotDisplay3D.interpolate(Color.CYAN, Color.ORANGE, (i % 20) / 20.0), (i - i % 20) / 400.0).getRGB();
+                    r.setDataElements(0, 0, 20, 20, pixelVector);
+                }
+            }
+            else {
+                ContourPlotDisplay3D.TextureGenerator texGen = new ContourPlotDisplay3D.TextureGenerator(cache, resolution, resolution);
+                texture = texGen.generateTexture();
+            }
+            return new Mipmapper(texture);
+        });
+        textureState = textures.toString();
+        return mipmapper;
+    }
+    
+    public String getTextureState() {
+        return textureState;
+    }
+    
+    public Memo<List<Object>, Mipmapper> getTextures() {
+        return textures;
+    }
+    
+    private void drawModel(RenderSettings settings, FrameBuffer frame, Model model, Transform3D transform, Color color, boolean warp, Mipmapper mipmapper, BooleanSupplier cancelled) throws InterruptedException {
+        //Terrain picks the detail of each chunk for this view, everything else is drawn as it is
+        Mesh mesh;
+        if (model.getLod() != null && settings.getLodTolerance() > 0) {
+            mesh = model.getLod().select(transform, settings.getProjection(), warp, settings.getLodTolerance());
+        }
+        else {
+            mesh = model.getMesh();
+        }
+        
+        //Transform and project each vertex once, triangles refer to the buffer by index
+        if (mesh.getTriangleCount() == 0) {
+            return;
+        }
+        int[] triangles = mesh.getTriangles();
+        int count = mesh.getTriangleCount();
+        RenderScheduler scheduler = RenderScheduler.getInstance();
+        VertexBuffer vertices = VertexProcessor.process(mesh, transform, settings.getProjection(), warp, scheduler);
+        
+        //Draw triangles, binned into screen tiles
+        if (settings.isDrawFaces() || settings.isDrawContours()) {
+            //Chunks go front to back, so nearer terrain fills the depth buffer first and hides what is behind it
+            int[] chunkOffsets = mesh.getChunkOffsets();
+            Integer[] chunkOrder = new Integer[mesh.getChunkCount()];
+            double[] chunkDepth = new double[mesh.getChunkCount()];
+            for (int k = 0; k < chunkOrder.length; k++) {
+                chunkOrder[k] = k;
+                chunkDepth[k] = Double.POSITIVE_INFINITY;
+                for (int i = 3 * chunkOffsets[k]; i < 3 * chunkOffsets[k + 1]; i++) {
+                    chunkDepth[k] = Math.min(chunkDepth[k], vertices.z[triangles[i]]);
+                }
+            }
+            Arrays.sort(chunkOrder, Comparator.comparingDouble(k -> chunkDepth[k]));
+            
+            TriangleClipper clipper = new TriangleClipper(frame.getWidth(), frame.getHeight(), settings.isBackFaceCulling());
+            int[] chunkEnds = new int[chunkOrder.length];
+            for (int k = 0; k < chunkOrder.length; k++) {
+                clipper.process(vertices, triangles, chunkOffsets[chunkOrder[k]], chunkOffsets[chunkOrder[k] + 1]);
+                chunkEnds[k] = clipper.getTriangleCount();
+            }
+            int[] visible = clipper.getTriangles();
+            int visibleCount = clipper.getTriangleCount();
+            
+            int[] groups = new int[visibleCount];
+            double[] bounds = new double[TileRenderer.BOUNDS_STRIDE * visibleCount];
+            double[] groupBounds = new double[TileRenderer.BOUNDS_STRIDE * chunkEnds.length];
+            int start = 0;
+            for (int k = 0; k < chunkEnds.length; k++) {
+                int group = TileRenderer.BOUNDS_STRIDE * k;
+                groupBounds[group] = Double.POSITIVE_INFINITY;
+                groupBounds[group + 1] = Double.POSITIVE_INFINITY;
+                groupBounds[group + 2] = Double.NEGATIVE_INFINITY;
+                groupBounds[group + 3] = Double.NEGATIVE_INFINITY;
+                groupBounds[group + 4] = Double.POSITIVE_INFINITY;
+                for (int i = start; i < chunkEnds[k]; i++) {
+                    int a = visible[3 * i];
+                    int b = visible[3 * i + 1];
+                    int c = visible[3 * i + 2];
+                    int offset = TileRenderer.BOUNDS_STRIDE * i;
+                    bounds[offset] = Math.min(Math.min(vertices.x[a], vertices.x[b]), vertices.x[c]) - 1;
+                    bounds[offset + 1] = Math.min(Math.min(vertices.y[a], vertices.y[b]), vertices.y[c]) - 1;
+                    bounds[offset + 2] = Math.max(Math.max(vertices.x[a], vertices.x[b]), vertices.x[c]) + 1;
+                    bounds[offset + 3] = Math.max(Math.max(vertices.y[a], vertices.y[b]), vertices.y[c]) + 1;
+                    bounds[offset + 4] = Math.min(Math.min(vertices.z[a], vertices.z[b]), vertices.z[c]);
+                    groups[i] = k;
+                    groupBounds[group] = Math.min(groupBounds[group], bounds[offset]);
+                    groupBounds[group + 1] = Math.min(groupBounds[group + 1], bounds[offset + 1]);
+                    groupBounds[group + 2] = Math.max(groupBounds[group + 2], bounds[offset + 2]);
+                    groupBounds[group + 3] = Math.max(groupBounds[group + 3], bounds[offset + 3]);
+                    groupBounds[group + 4] = Math.min(groupBounds[group + 4], bounds[offset + 4]);
+                }
+                start = chunkEnds[k];
+            }
+            tileRenderer.render(frame, bounds, visibleCount, groups, groupBounds, scheduler, (tile, i) -> {
+                if (!cancelled.getAsBoolean()) {
+                    drawTriangle(settings, tile, vertices, visible[3 * i], visible[3 * i + 1], visible[3 * i + 2], mipmapper);
+                }
+            });
+        }
+        
+        if (settings.isShowOutline()) {
+            for (int i = 0; i < count; i++) {
+                drawEdge(frame, vertices, triangles[3 * i], triangles[3 * i + 1], color);
+                drawEdge(frame, vertices, triangles[3 * i + 1], triangles[3 * i + 2], color);
+                drawEdge(frame, vertices, triangles[3 * i + 2], triangles[3 * i], color);
+            }
+        }
+        
+        //Draw edges
+        /*for (Pair<Integer, Integer> edge : model.getEdges()) {
+            try {
+                Point3D a = model.getVertices().get(edge.a).copy();
+                Point3D b = model.getVertices().get(edge.b).copy();
+            
+                Matrix am = a.toMatrix();
+                Matrix bm = b.toMatrix();
+            
+                am = am.multiply(Matrix.scaleMatrix3D(transform.scale.getX(), transform.scale.getY(), transform.scale.getZ()));
+                bm = bm.multiply(Matrix.scaleMatrix3D(transform.scale.getX(), transform.scale.getY(), transform.scale.getZ()));
+            
+                am = am.multiply(Matrix.rotationMatrix3D(transform.rotation.getX(), transform.rotation.getY(), transform.rotation.getZ()));
+                bm = bm.multiply(Matrix.rotationMatrix3D(transform.rotation.getX(), transform.rotation.getY(), transform.rotation.getZ()));
+            
+                am = am.multiply(Matrix.offsetMatrix3D(transform.offset.getX(), transform.offset.getY(), transform.offset.getZ()));
+                bm = bm.multiply(Matrix.offsetMatrix3D(transform.offset.getX(), transform.offset.getY(), transform.offset.getZ()));
+            
+                a.setX(am.get(0, 0));
+                a.setY(am.get(1, 0));
+                a.setZ(am.get(2, 0));
+            
+                b.setX(bm.get(0, 0));
+                b.setY(bm.get(1, 0));
+                b.setZ(bm.get(2, 0));
+            
+            
+                if (isParallelMode()) {
+                    double l = getFactorL();
+                    double angle = getAngleA();
+                    double x;
+                    double y;
+                
+                    x = a.getX() + a.getZ() * (l * Math.cos(angle));
+                    y = a.getY() + a.getZ() * (l * Math.sin(angle));
+                
+                    a.setX(x);
+                    a.setY(y);
+                
+                    x = b.getX() + b.getZ() * (l * Math.cos(angle));
+                    y = b.getY() + b.getZ() * (l * Math.sin(angle));
+                
+                    b.setX(x);
+                    b.setY(y);
+                }
+                else {
+                    if (warp) {
+                        double d = getFactorD();
+                        double x;
+                        double y;
+                    
+                        x = a.getX() / (1 + (Math.abs(a.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(a.getY()) * (isWarpY() ? 1 : 0) / d) + ((a.getZ()) * (isWarpZ() ? 1 : 0) / d));
+                        y = a.getY() / (1 + (Math.abs(a.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(a.getY()) * (isWarpY() ? 1 : 0) / d) + ((a.getZ()) * (isWarpZ() ? 1 : 0) / d));
+                    
+                        a.setX(x);
+                        a.setY(y);
+                    
+                        x = b.getX() / (1 + (Math.abs(b.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(b.getY()) * (isWarpY() ? 1 : 0) / d) + ((b.getZ()) * (isWarpZ() ? 1 : 0) / d));
+                        y = b.getY() / (1 + (Math.abs(b.getX()) * (isWarpX() ? 1 : 0) / d) + (Math.abs(b.getY()) * (isWarpY() ? 1 : 0) / d) + ((b.getZ()) * (isWarpZ() ? 1 : 0) / d));
+                    
+                        b.setX(x);
+                        b.setY(y);
+                    }
+                }
+            
+                g.setColor(color);
+                g.drawLine(normX(a.getX()), normY(a.getY()), normX(b.getX()), normY(b.getY()));
+            }
+            catch (ArrayIndexOutOfBoundsException e) {
+                e.printStackTrace();
+            }
+        }*/
+    }
+    
+    private static void drawEdge(FrameBuffer frame, VertexBuffer vertices, int a, int b, Color color) {
+        frame.drawLine((int) Math.floor(vertices.x[a]), (int) Math.floor(vertices.y[a]), (int) Math.floor(vertices.x[b]), (int) Math.floor(vertices.y[b]), color.getRGB());
+    }
+    
+    
+    private void drawTriangle(RenderSettings settings, TileRenderer.Tile tile, VertexBuffer vertices, int ia, int ib, int ic, Mipmapper mm) {
+        //Interpolated attributes: depth, texture coordinates and model height
+        double[] attributes = {
+                vertices.z[ia], vertices.u[ia], vertices.v[ia], vertices.h[ia],
+                vertices.z[ib], vertices.u[ib], vertices.v[ib], vertices.h[ib],
+                vertices.z[ic], vertices.u[ic], vertices.v[ic], vertices.h[ic]
+        };
+        Rasterizer rasterizer = tile.getRasterizer();
+        if (!rasterizer.setup(vertices.x[ia], vertices.y[ia], vertices.x[ib], vertices.y[ib], vertices.x[ic], vertices.y[ic], attributes, 4)) {
+            return;
+        }
+        
+        //Contours are drawn where the interpolated height is within half a line width of a contour level,
+        //the distance is converted to pixels with the screen space height gradient of the triangle
+        ContourPlotDisplay3D.FunctionCache cache = settings.getCache();
+        int contours = settings.getContours();
+        double contourOffset = settings.getContourOffset();
+        boolean contoursVisible = settings.isDrawContours() && cache != null && contours > 0;
+        double heightGradient = Math.sqrt(rasterizer.getGradientX(3) * rasterizer.getGradientX(3) + rasterizer.getGradientY(3) * rasterizer.getGradientY(3));
+        double contourHalfWidth = 0.5 * settings.getContourWidth() * heightGradient;
+        int contourRGB = settings.getContourColor().getRGB();
+        
+        //Texture coordinates are affine over the triangle, so the mipmap level is the same for all of its pixels
+        double mmU = 0;
+        double mmV = 0;
+        if (settings.isUseMipmap()) {
+            mmU = mipmapLevel(rasterizer.getGradientX(1), rasterizer.getGradientY(1), mm.getTexture().getWidth(), settings.getMipmapBiasU());
+            mmV = mipmapLevel(rasterizer.getGradientX(2), rasterizer.getGradientY(2), mm.getTexture().getHeight(), settings.getMipmapBiasV());
+        }
+        double levelU = mmU;
+        double levelV = mmV;
+        boolean drawFaces = settings.isDrawFaces();
+        TextureUtils.Filtering filtering = settings.getFiltering();
+        int background = settings.getBackground();
+        
+        rasterizer.rasterize(tile.x, tile.y, tile.width, tile.height, (j, i, values) -> {
+            if (!tile.testAndSetDepth(j, i, values[0])) {
+                return;
+            }
+            
+            //Paint pixel
+            int c;
+            if (contoursVisible && cache.getContourDistanceNormalized(values[3], contours, contourOffset) < contourHalfWidth) {
+                c = contourRGB;
+            } else {
+                if (drawFaces) {
+                    c = mm.sampleRGB(values[1], 1 - values[2], levelU, levelV, filtering);
+                }
+                else {
+                    c = background;
+                }
+            }
+            tile.setPixel(j, i, c);
+        });
+    }
+    
+    //Level of detail from the screen space derivatives of a texture coordinate and the texture size along it
+    static double mipmapLevel(double dx, double dy, int size, double bias) {
+        double footprint = Math.sqrt(dx * dx + dy * dy) * size;
+        return Math.max(0, Math.log(footprint) / LOG_2 + bias);
+    }
+    
+    public TileRenderer getTileRenderer() {
+        return tileRenderer;
+    }
+}
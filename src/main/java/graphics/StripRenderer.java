@@ -0,0 +1,173 @@
+package graphics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Renders a frame too large for memory as horizontal strips, each rendered on its own through a window of the projection.
+//Strips are handed to a sink as soon as they are done, at most parallelism strips are rendered at a time and at most
+//twice as many are held in memory while an ordered sink waits for an earlier one.
+//Strips are background work of the shared RenderScheduler and their tiles interactive work of the same pool, so strips
+//never run on more threads than the scheduler has.
+public class StripRenderer {
+    private final int stripHeight;
+    private final int parallelism;
+    //Shared by the renderers of all strips, so the texture is generated once
+    private final Memo<List<Object>, Mipmapper> textures;
+    
+    public StripRenderer(int stripHeight, int parallelism) {
+        this(stripHeight, parallelism, new Memo<>("Texture", 4));
+    }
+    
+    public StripRenderer(int stripHeight, int parallelism, Memo<List<Object>, Mipmapper> textures) {
+        if (stripHeight < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Invalid strip height or parallelism");
+        }
+        this.stripHeight = stripHeight;
+        this.parallelism = parallelism;
+        this.textures = textures;
+    }
+    
+    public void render(RenderSettings settings, StripSink sink) throws IOException, InterruptedException {
+        Projection projection = settings.getProjection();
+        int width = projection.getWidth();
+        int height = projection.getHeight();
+        int strips = (height + stripHeight - 1) / stripHeight;
+        
+        //Strips are started in order and a permit is only returned once a strip is written, which bounds the strips held
+        Semaphore held = new Semaphore(2 * parallelism);
+        Semaphore rendering = new Semaphore(parallelism);
+        Object writeLock = new Object();
+        int[] nextWrite = {0};
+        Strip[] finished = new Strip[strips];
+        
+        //Renderers are not thread safe, a strip takes one no other strip is using
+        Queue<SceneRenderer> renderers = new ConcurrentLinkedQueue<>();
+        RenderScheduler scheduler = RenderScheduler.getInstance();
+        List<Future<?>> started = new ArrayList<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        try {
+            for (int s = 0; s < strips; s++) {
+                held.acquire();
+                rendering.acquire();
+                //A failed strip returns its permits without being written, so this can not wait forever after a failure
+                if (failure.get() != null) {
+                    break;
+                }
+                int index = s;
+                int y = s * stripHeight;
+                int h = Math.min(stripHeight, height - y);
+                started.add(scheduler.submit(RenderScheduler.Priority.BACKGROUND, () -> {
+                    try {
+                        Strip strip;
+                        try {
+                            strip = new Strip(y, h, renderStrip(settings, projection.window(0, y, width, h), renderers));
+                        } finally {
+                            rendering.release();
+                        }
+                        if (!sink.isOrdered()) {
+                            sink.write(strip.y, strip.height, width, strip.pixels);
+                            held.release();
+                            return;
+                        }
+                        //Whoever finishes the strip next in line writes it and every finished one after it
+                        synchronized (writeLock) {
+                            finished[index] = strip;
+                            while (nextWrite[0] < strips && finished[nextWrite[0]] != null && failure.get() == null) {
+                                Strip next = finished[nextWrite[0]];
+                                finished[nextWrite[0]++] = null;
+                                sink.write(next.y, next.height, width, next.pixels);
+                                held.release();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        held.release();
+                    }
+                }));
+            }
+            for (Future<?> strip : started) {
+                if (failure.get() != null) {
+                    break;
+                }
+                try {
+                    strip.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            //Strips still queued or running after a failure or an interrupt are stopped
+            for (Future<?> strip : started) {
+                strip.cancel(true);
+            }
+        }
+        
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof InterruptedException) {
+            throw (InterruptedException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e != null) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private int[] renderStrip(RenderSettings settings, Projection window, Queue<SceneRenderer> renderers) throws InterruptedException {
+        RenderSettings stripSettings = settings.copy();
+        stripSettings.setProjection(window);
+        SceneRenderer renderer = renderers.poll();
+        if (renderer == null) {
+            renderer = new SceneRenderer(textures);
+        }
+        try {
+            FrameBuffer frame = new FrameBuffer();
+            renderer.render(stripSettings, frame);
+            return frame.getPixels();
+        } finally {
+            renderers.add(renderer);
+        }
+    }
+    
+    public int getStripHeight() {
+        return stripHeight;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    private static class Strip {
+        final int y;
+        final int height;
+        final int[] pixels;
+        
+        Strip(int y, int height, int[] pixels) {
+            this.y = y;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+    
+    //Receives finished strips, pixels are ARGB rows of the given width
+    public interface StripSink {
+        void write(int y, int height, int width, int[] pixels) throws IOException;
+        
+        //Ordered sinks get strips top to bottom, others as they finish and from several threads
+        boolean isOrdered();
+    }
+}
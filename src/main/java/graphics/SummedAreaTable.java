@@ -0,0 +1,116 @@
+package graphics;
+
+import java.awt.image.BufferedImage;
+
+//Running sums of the channels of an image in linear light: entry (x, y) holds the sum over every texel left of x and
+//above y. The average over any rectangle takes the entries at its four corners, whatever its size.
+//Entries are longs, 24 bytes per texel, so a table is only built for images that are sampled this way.
+public class SummedAreaTable {
+    private final int width;
+    private final int height;
+    //Red, green and blue of an entry side by side, rows of width + 1 entries
+    private final long[] sums;
+    
+    public SummedAreaTable(BufferedImage image) {
+        width = image.getWidth();
+        height = image.getHeight();
+        long entries = 3L * (width + 1) * (height + 1);
+        if (entries > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image too large for a summed area table");
+        }
+        sums = new long[(int) entries];
+        int stride = 3 * (width + 1);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            int above = y * stride + 3;
+            int out = above + stride;
+            for (int x = 0; x < width; x++, above += 3, out += 3) {
+                int rgb = row[x];
+                r += TextureUtils.linear((rgb >> 16) & 0xFF);
+                g += TextureUtils.linear((rgb >> 8) & 0xFF);
+                b += TextureUtils.linear(rgb & 0xFF);
+                sums[out] = sums[above] + r;
+                sums[out + 1] = sums[above + 1] + g;
+                sums[out + 2] = sums[above + 2] + b;
+            }
+        }
+    }
+    
+    //Average of the texels from (x0, y0) up to but not including (x1, y1), clamped to the image. The result is opaque
+    public int average(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(0, Math.min(width - 1, x0));
+        y0 = Math.max(0, Math.min(height - 1, y0));
+        x1 = Math.max(x0 + 1, Math.min(width, x1));
+        y1 = Math.max(y0 + 1, Math.min(height, y1));
+        int stride = 3 * (width + 1);
+        int tl = y0 * stride + 3 * x0;
+        int tr = y0 * stride + 3 * x1;
+        int bl = y1 * stride + 3 * x0;
+        int br = y1 * stride + 3 * x1;
+        long count = (long) (x1 - x0) * (y1 - y0);
+        int rgb = 0xFF000000;
+        for (int c = 0; c < 3; c++) {
+            long sum = sums[br + c] - sums[bl + c] - sums[tr + c] + sums[tl + c];
+            rgb |= TextureUtils.encode((int) ((sum + count / 2) / count)) << (16 - 8 * c);
+        }
+        return rgb;
+    }
+    
+    //Average over a footprint of du by dv centered at (u, v), texel centers are at whole coordinates like in bilinear
+    //sampling. Texels partly inside count by the part inside: the sums grow linearly across a texel, so interpolating
+    //them at the corners gives the exact area. The footprint is at least a texel and is moved inside the image
+    public int average(double u, double v, double du, double dv) {
+        //Texel i covers [i, i + 1) from here on
+        double w = Math.min(width, Math.max(1, du * width));
+        double h = Math.min(height, Math.max(1, dv * height));
+        double x0 = Math.max(0, Math.min(width - w, TextureUtils.wrap(width, u) + 0.5 - 0.5 * w));
+        double y0 = Math.max(0, Math.min(height - h, TextureUtils.wrap(height, v) + 0.5 - 0.5 * h));
+        double x1 = x0 + w;
+        double y1 = y0 + h;
+        int ix0 = (int) x0;
+        int iy0 = (int) y0;
+        int ix1 = Math.min(width - 1, (int) x1);
+        int iy1 = Math.min(height - 1, (int) y1);
+        double fx0 = x0 - ix0;
+        double fy0 = y0 - iy0;
+        double fx1 = x1 - ix1;
+        double fy1 = y1 - iy1;
+        int stride = 3 * (width + 1);
+        int origin = iy0 * stride + 3 * ix0;
+        double area = w * h;
+        int rgb = 0xFF000000;
+        for (int c = 0; c < 3; c++) {
+            //Sums are taken relative to the first corner, so doubles only ever hold sums over the footprint
+            long base = sums[origin + c];
+            double sum = at(c, ix1, iy1, fx1, fy1, base) - at(c, ix0, iy1, fx0, fy1, base)
+                    - at(c, ix1, iy0, fx1, fy0, base) + at(c, ix0, iy0, fx0, fy0, base);
+            int linear = (int) Math.max(0, Math.min(TextureUtils.linear(255), Math.round(sum / area)));
+            rgb |= TextureUtils.encode(linear) << (16 - 8 * c);
+        }
+        return rgb;
+    }
+    
+    //Sum of a channel up to (x + fx, y + fy) less base
+    private double at(int c, int x, int y, double fx, double fy, long base) {
+        int stride = 3 * (width + 1);
+        int i = y * stride + 3 * x + c;
+        return (1 - fx) * (1 - fy) * (sums[i] - base) + fx * (1 - fy) * (sums[i + 3] - base)
+                + (1 - fx) * fy * (sums[i + stride] - base) + fx * fy * (sums[i + stride + 3] - base);
+    }
+    
+    public long getBytes() {
+        return 8L * sums.length;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,365 @@
+package graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+//Geomipmapping for the terrain of a FunctionCache. The height grid is split into square chunks and a chunk at level l only
+//uses every 2^l-th sample. Each frame every chunk gets the coarsest level whose error stays under a tolerance in screen
+//pixels, so the triangle count follows the size of the terrain on screen instead of the size of the grid.
+//Edges next to a coarser chunk only use the samples of the coarser chunk, so neighbouring levels meet without cracks.
+public class TerrainLod {
+    //The passes of a progressive frame each select their own levels
+    private static final int SELECTIONS = 3;
+    
+    private final ContourPlotDisplay3D.FunctionCache cache;
+    private final int resolution;
+    private final int chunkSize;
+    private final int levels;
+    private final int chunks;
+    
+    //Largest height difference between the full grid and each level of each chunk in model units, levels of a chunk are consecutive
+    private final double[] errors;
+    //Lowest and highest model height of each chunk
+    private final double[] lowest;
+    private final double[] highest;
+    
+    private volatile int lastTriangleCount = 0;
+    private volatile int[] lastLevelCounts;
+    //Consecutive frames and the strips of one frame mostly select the same levels, their mesh is only built once
+    private final Memo<List<Integer>, Mesh> selections = new Memo<>("Terrain LOD", SELECTIONS);
+    
+    public TerrainLod(ContourPlotDisplay3D.FunctionCache cache, int chunkSize) {
+        if (chunkSize < 1 || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("Chunk size has to be a power of two");
+        }
+        this.cache = cache;
+        this.resolution = cache.getResolution();
+        this.chunkSize = chunkSize;
+        this.levels = Integer.numberOfTrailingZeros(chunkSize) + 1;
+        this.chunks = (resolution + chunkSize - 1) / chunkSize;
+        errors = new double[chunks * chunks * levels];
+        lowest = new double[chunks * chunks];
+        highest = new double[chunks * chunks];
+        lastLevelCounts = new int[levels];
+        
+        //Chunk rows are measured as background work in the shared scheduler
+        List<Runnable> tasks = new ArrayList<>();
+        for (int row = 0; row < chunks; row++) {
+            int cy = row;
+            tasks.add(() -> {
+                for (int cx = 0; cx < chunks; cx++) {
+                    measure(cx, cy);
+                }
+            });
+        }
+        try {
+            RenderScheduler.getInstance().invokeAll(RenderScheduler.Priority.BACKGROUND, tasks);
+        } catch (InterruptedException e) {
+            //Chunks would be missing levels, an incomplete LOD must not be cached
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Terrain LOD build interrupted");
+        }
+    }
+    
+    private void measure(int cx, int cy) {
+        int chunk = cy * chunks + cx;
+        int row0 = cy * chunkSize;
+        int col0 = cx * chunkSize;
+        int row1 = Math.min(resolution, row0 + chunkSize);
+        int col1 = Math.min(resolution, col0 + chunkSize);
+        
+        lowest[chunk] = Double.POSITIVE_INFINITY;
+        highest[chunk] = Double.NEGATIVE_INFINITY;
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                double h = height(row, col);
+                lowest[chunk] = Math.min(lowest[chunk], h);
+                highest[chunk] = Math.max(highest[chunk], h);
+            }
+        }
+        
+        //Samples are compared with the triangles of each level, split along the same diagonal the mesh uses
+        for (int level = 1; level < levels; level++) {
+            int step = 1 << level;
+            double error = errors[chunk * levels + level - 1];
+            for (int row = row0; row <= row1; row++) {
+                int top = row0 + (row - row0) / step * step;
+                int bottom = Math.min(resolution, top + step);
+                double fy = bottom > top ? (row - top) / (double) (bottom - top) : 0;
+                for (int col = col0; col <= col1; col++) {
+                    int left = col0 + (col - col0) / step * step;
+                    int right = Math.min(resolution, left + step);
+                    double fx = right > left ? (col - left) / (double) (right - left) : 0;
+                    double h00 = height(top, left);
+                    double h11 = height(bottom, right);
+                    double approximation;
+                    if (fy >= fx) {
+                        double h01 = height(bottom, left);
+                        approximation = h00 + fy * (h01 - h00) + fx * (h11 - h01);
+                    }
+                    else {
+                        double h10 = height(top, right);
+                        approximation = h00 + fx * (h10 - h00) + fy * (h11 - h10);
+                    }
+                    double difference = Math.abs(height(row, col) - approximation);
+                    if (difference > error) {
+                        error = difference;
+                    }
+                }
+            }
+            errors[chunk * levels + level] = error;
+        }
+    }
+    
+    private double height(int row, int col) {
+        return cache.getModelHeight(row, col);
+    }
+    
+    //Every chunk at full detail
+    public Mesh getFullMesh() {
+        return build(new int[chunks * chunks]);
+    }
+    
+    //Mesh for one frame, tolerance is the largest error allowed in screen pixels
+    public Mesh select(Transform3D transform, Projection projection, boolean warp, double tolerance) {
+        double[] m = transform.toArray();
+        double cell = 2.0 / resolution;
+        int[] chunkLevels = new int[chunks * chunks];
+        double[] corner = new double[3];
+        double[] screen = new double[2];
+        double[] moved = new double[2];
+        
+        for (int cy = 0; cy < chunks; cy++) {
+            for (int cx = 0; cx < chunks; cx++) {
+                int chunk = cy * chunks + cx;
+                double x0 = 2.0 * cx * chunkSize / resolution - 1;
+                double z0 = 2.0 * cy * chunkSize / resolution - 1;
+                double x1 = 2.0 * Math.min(resolution, (cx + 1) * chunkSize) / resolution - 1;
+                double z1 = 2.0 * Math.min(resolution, (cy + 1) * chunkSize) / resolution - 1;
+                
+                //Pixels per model unit, the largest stretch of any axis at any corner of the chunk bounds
+                double density = 0;
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < 8 && density < Double.POSITIVE_INFINITY; k++) {
+                    corner[0] = (k & 1) == 0 ? x0 : x1;
+                    corner[1] = (k & 2) == 0 ? lowest[chunk] : highest[chunk];
+                    corner[2] = (k & 4) == 0 ? z0 : z1;
+                    project(m, projection, warp, corner[0], corner[1], corner[2], screen);
+                    minX = Math.min(minX, screen[0]);
+                    minY = Math.min(minY, screen[1]);
+                    maxX = Math.max(maxX, screen[0]);
+                    maxY = Math.max(maxY, screen[1]);
+                    for (int axis = 0; axis < 3; axis++) {
+                        corner[axis] += cell;
+                        project(m, projection, warp, corner[0], corner[1], corner[2], moved);
+                        corner[axis] -= cell;
+                        double stretch = Math.hypot(moved[0] - screen[0], moved[1] - screen[1]) / cell;
+                        density = Double.isNaN(stretch) ? Double.POSITIVE_INFINITY : Math.max(density, stretch);
+                    }
+                }
+                
+                //Points that do not project to finite positions leave the chunk at full detail
+                if (density == Double.POSITIVE_INFINITY) {
+                    chunkLevels[chunk] = 0;
+                    continue;
+                }
+                //Bounds of the corners only hold the whole chunk if the projection is linear. Windows test against the whole
+                //screen, so all windows of a screen select the same levels and their pieces fit together
+                boolean linear = projection.isParallelMode() || !warp;
+                int wx = projection.getWindowX();
+                int wy = projection.getWindowY();
+                if (linear && (maxX + wx < 0 || maxY + wy < 0 || minX + wx > projection.getScreenWidth() || minY + wy > projection.getScreenHeight())) {
+                    chunkLevels[chunk] = levels - 1;
+                    continue;
+                }
+                
+                //A level is good enough if its error or its cells are smaller than the tolerance on screen
+                int level = levels - 1;
+                while (level > 0 && errors[chunk * levels + level] * density > tolerance && cell * (1 << level) * density > tolerance) {
+                    level--;
+                }
+                chunkLevels[chunk] = level;
+            }
+        }
+        List<Integer> key = new ArrayList<>(chunkLevels.length);
+        for (int level : chunkLevels) {
+            key.add(level);
+        }
+        return selections.get(key, k -> build(chunkLevels));
+    }
+    
+    private static void project(double[] m, Projection projection, boolean warp, double x, double y, double z, double[] out) {
+        double tx = m[0] * x + m[1] * y + m[2] * z + m[3];
+        double ty = m[4] * x + m[5] * y + m[6] * z + m[7];
+        double tz = m[8] * x + m[9] * y + m[10] * z + m[11];
+        projection.project(tx, ty, tz, warp, out, 0);
+    }
+    
+    private Mesh build(int[] chunkLevels) {
+        int vertexCount = 0;
+        int triangleLimit = 0;
+        int[] levelCounts = new int[levels];
+        for (int chunk = 0; chunk < chunkLevels.length; chunk++) {
+            int level = chunkLevels[chunk];
+            vertexCount += (usedCells(chunk / chunks, level) + 1) * (usedCells(chunk % chunks, level) + 1);
+            triangleLimit += 2 * (chunkSize >> level) * (chunkSize >> level);
+            levelCounts[level]++;
+        }
+        double[] vertices = new double[Mesh.STRIDE * vertexCount];
+        int[] triangles = new int[3 * triangleLimit];
+        int[] chunkOffsets = new int[chunkLevels.length + 1];
+        int[] count = new int[2];
+        
+        for (int cy = 0; cy < chunks; cy++) {
+            for (int cx = 0; cx < chunks; cx++) {
+                int chunk = cy * chunks + cx;
+                int level = chunkLevels[chunk];
+                int step = 1 << level;
+                int cells = chunkSize >> level;
+                int[] shape = {count[0], usedCells(cy, level), usedCells(cx, level)};
+                
+                //Every sample of the chunk level, edges that are stitched to a coarser neighbour leave some of them unused
+                for (int i = 0; i <= shape[1]; i++) {
+                    int row = Math.min(resolution, cy * chunkSize + i * step);
+                    for (int j = 0; j <= shape[2]; j++) {
+                        int col = Math.min(resolution, cx * chunkSize + j * step);
+                        int offset = Mesh.STRIDE * count[0]++;
+                        vertices[offset] = 2.0 * col / resolution - 1;
+                        vertices[offset + 1] = height(row, col);
+                        vertices[offset + 2] = 2.0 * row / resolution - 1;
+                        vertices[offset + 3] = col / (double) resolution;
+                        vertices[offset + 4] = row / (double) resolution;
+                    }
+                }
+                
+                if (cells == 1) {
+                    addTriangle(triangles, count, shape, 0, 0, 1, 0, 1, 1);
+                    addTriangle(triangles, count, shape, 1, 1, 0, 1, 0, 0);
+                }
+                else {
+                    for (int i = 1; i < cells - 1; i++) {
+                        for (int j = 1; j < cells - 1; j++) {
+                            addTriangle(triangles, count, shape, i, j, i + 1, j, i + 1, j + 1);
+                            addTriangle(triangles, count, shape, i + 1, j + 1, i, j + 1, i, j);
+                        }
+                    }
+                    //Ring between the inner grid and the chunk edges, one trapezoid per side
+                    for (int side = 0; side < 4; side++) {
+                        int neighbour = neighbourLevel(chunkLevels, cx, cy, side);
+                        int outerStep = 1 << (Math.max(level, neighbour) - level);
+                        stitch(triangles, count, shape, cells, side, outerStep);
+                    }
+                }
+                chunkOffsets[chunk + 1] = count[1];
+            }
+        }
+        
+        lastTriangleCount = count[1];
+        lastLevelCounts = levelCounts;
+        return new Mesh(vertices, Arrays.copyOf(triangles, 3 * count[1]), chunkOffsets);
+    }
+    
+    //Sides are top, right, bottom and left, a missing neighbour counts as the same level
+    private int neighbourLevel(int[] chunkLevels, int cx, int cy, int side) {
+        int nx = cx + (side == 1 ? 1 : side == 3 ? -1 : 0);
+        int ny = cy + (side == 2 ? 1 : side == 0 ? -1 : 0);
+        if (nx < 0 || ny < 0 || nx >= chunks || ny >= chunks) {
+            return chunkLevels[cy * chunks + cx];
+        }
+        return chunkLevels[ny * chunks + nx];
+    }
+    
+    //Cells of a chunk at a level along one axis. Chunks at the far edges of a grid that is not a multiple of the chunk size
+    //only cover part of the chunk, the last cell ends at the grid edge
+    private int usedCells(int chunk, int level) {
+        int step = 1 << level;
+        return Math.min(chunkSize, resolution - chunk * chunkSize + step - 1) / step;
+    }
+    
+    //Zips the chunk edge, which only has every outerStep-th vertex, to the first inner row of the chunk.
+    //Positions along the side are in chunk cells, the edge runs from 0 to cells and the inner row from 1 to cells - 1
+    private static void stitch(int[] triangles, int[] count, int[] shape, int cells, int side, int outerStep) {
+        int outer = 0;
+        int inner = 1;
+        while (outer < cells || inner < cells - 1) {
+            if (inner == cells - 1 || (outer < cells && outer + outerStep <= inner + 1)) {
+                addSideTriangle(triangles, count, shape, cells, side, outer, 0, outer + outerStep, 0, inner, 1);
+                outer += outerStep;
+            }
+            else {
+                addSideTriangle(triangles, count, shape, cells, side, outer, 0, inner + 1, 1, inner, 1);
+                inner++;
+            }
+        }
+    }
+    
+    private static void addSideTriangle(int[] triangles, int[] count, int[] shape, int cells, int side, int ta, int da, int tb, int db, int tc, int dc) {
+        int[] a = sidePosition(cells, side, ta, da);
+        int[] b = sidePosition(cells, side, tb, db);
+        int[] c = sidePosition(cells, side, tc, dc);
+        addTriangle(triangles, count, shape, a[0], a[1], b[0], b[1], c[0], c[1]);
+    }
+    
+    //Row and column of the point at position t along the side and depth cells in from the edge
+    private static int[] sidePosition(int cells, int side, int t, int depth) {
+        switch (side) {
+            case 0:
+                return new int[]{depth, t};
+            case 1:
+                return new int[]{t, cells - depth};
+            case 2:
+                return new int[]{cells - depth, t};
+            default:
+                return new int[]{t, depth};
+        }
+    }
+    
+    //Corners are rows and columns of the chunk vertices, triangles get the winding of the other terrain meshes.
+    //Shape is the first vertex of the chunk and the rows and columns of cells it uses. Corners past them lie on the grid
+    //edge with the last used ones, triangles entirely past them or with corners merged there have no area and are left out
+    private static void addTriangle(int[] triangles, int[] count, int[] shape, int ra, int ca, int rb, int cb, int rc, int cc) {
+        int rows = shape[1];
+        int cols = shape[2];
+        if (Math.min(ra, Math.min(rb, rc)) >= rows || Math.min(ca, Math.min(cb, cc)) >= cols) {
+            return;
+        }
+        int a = shape[0] + Math.min(ra, rows) * (cols + 1) + Math.min(ca, cols);
+        int b = shape[0] + Math.min(rb, rows) * (cols + 1) + Math.min(cb, cols);
+        int c = shape[0] + Math.min(rc, rows) * (cols + 1) + Math.min(cc, cols);
+        if (a == b || b == c || c == a) {
+            return;
+        }
+        long orientation = (long) (cb - ca) * (rc - ra) - (long) (rb - ra) * (cc - ca);
+        int offset = 3 * count[1]++;
+        triangles[offset] = a;
+        triangles[offset + 1] = orientation < 0 ? b : c;
+        triangles[offset + 2] = orientation < 0 ? c : b;
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    public int getLevels() {
+        return levels;
+    }
+    
+    //Largest height error of a chunk at a level, in model units
+    public double getError(int chunkX, int chunkY, int level) {
+        return errors[(chunkY * chunks + chunkX) * levels + level];
+    }
+    
+    public int getLastTriangleCount() {
+        return lastTriangleCount;
+    }
+    
+    //Number of chunks drawn at each level in the last mesh
+    public int[] getLastLevelCounts() {
+        return lastLevelCounts.clone();
+    }
+}
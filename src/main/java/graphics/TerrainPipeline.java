@@ -0,0 +1,247 @@
+package graphics;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+//Builds the terrain for the display from an image on a background thread: colors are mapped to heights, the heights are
+//sampled into a grid and the grid is turned into a model. Submitting a new job cancels the one still running.
+//Listener methods are called on the pipeline thread, a cancelled job reports nothing after its cancellation.
+//Stages are memoized on their inputs, a job with the same image, mapper settings, colors and resolution as the last one
+//reuses its heights and model instead of sampling again.
+public class TerrainPipeline {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "terrain-pipeline");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Memo<List<Object>, BiFunction<Double, Double, Double>> functions = new Memo<>("Color to height function");
+    private final Memo<List<Object>, ContourPlotDisplay3D.FunctionCache> heights = new Memo<>("Height grid");
+    private Job current;
+    
+    //The mapper and the color data are used as they are when the job runs, so they should not be changed afterwards
+    public synchronized Job submit(Mipmapper image, ColorMapper mapper, Map<Color, Double> colorData, int resolution, Listener listener) {
+        if (image == null || mapper == null || resolution < 1) {
+            throw new IllegalArgumentException();
+        }
+        cancel();
+        Job job = new Job(image, mapper, new HashMap<>(colorData), resolution, listener);
+        current = job;
+        job.future = executor.submit(job::run);
+        return job;
+    }
+    
+    public synchronized void cancel() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+    }
+    
+    public Memo<List<Object>, BiFunction<Double, Double, Double>> getFunctions() {
+        return functions;
+    }
+    
+    public Memo<List<Object>, ContourPlotDisplay3D.FunctionCache> getHeights() {
+        return heights;
+    }
+    
+    public enum Stage {
+        BUILD_MIPMAPS("Building mipmaps"),
+        MAP_COLORS("Mapping colors"),
+        SAMPLE_HEIGHTS("Sampling heights"),
+        BUILD_MODEL("Building model");
+        
+        private final String description;
+        
+        Stage(String description) {
+            this.description = description;
+        }
+        
+        public String getDescription() {
+            return description;
+        }
+    }
+    
+    public interface Listener {
+        void stageStarted(Stage stage);
+        
+        //The stage was skipped because its result for the same inputs was still there
+        void stageCached(Stage stage);
+        
+        //Fraction of the stage done, from 0 to 1
+        void progress(Stage stage, double fraction);
+        
+        void stageCompleted(Stage stage, long nanos);
+        
+        void completed(Result result);
+        
+        void failed(Exception e);
+    }
+    
+    public static class Result {
+        private final BiFunction<Double, Double, Double> function;
+        private final ContourPlotDisplay3D.FunctionCache cache;
+        private final Model model;
+        
+        private Result(BiFunction<Double, Double, Double> function, ContourPlotDisplay3D.FunctionCache cache, Model model) {
+            this.function = function;
+            this.cache = cache;
+            this.model = model;
+        }
+        
+        public BiFunction<Double, Double, Double> getFunction() {
+            return function;
+        }
+        
+        public ContourPlotDisplay3D.FunctionCache getCache() {
+            return cache;
+        }
+        
+        public Model getModel() {
+            return model;
+        }
+    }
+    
+    public class Job {
+        private final Mipmapper image;
+        private final ColorMapper mapper;
+        private final Map<Color, Double> colorData;
+        private final int resolution;
+        private final Listener listener;
+        private volatile boolean cancelled = false;
+        private volatile Future<?> future;
+        
+        private Job(Mipmapper image, ColorMapper mapper, Map<Color, Double> colorData, int resolution, Listener listener) {
+            this.image = image;
+            this.mapper = mapper;
+            this.colorData = colorData;
+            this.resolution = resolution;
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        public boolean isDone() {
+            return future != null && future.isDone();
+        }
+        
+        private void run() {
+            try {
+                //Levels are built in the background once the image is loaded, this waits for the rest of them.
+                //Sampling would build the levels it needs on its own, waiting here only keeps the stages apart
+                if (mapper.isUseMipmaps()) {
+                    if (image.isGenerated()) {
+                        cached(Stage.BUILD_MIPMAPS);
+                    }
+                    else {
+                        start(Stage.BUILD_MIPMAPS);
+                        long start = System.nanoTime();
+                        Future<?> build = image.prebuild();
+                        while (true) {
+                            if (cancelled) {
+                                throw new CancellationException();
+                            }
+                            try {
+                                build.get(50, TimeUnit.MILLISECONDS);
+                                break;
+                            } catch (TimeoutException e) {
+                                //Checks for cancellation again
+                            } catch (InterruptedException e) {
+                                throw new CancellationException();
+                            } catch (ExecutionException e) {
+                                throw new IllegalStateException(e.getCause());
+                            }
+                        }
+                        complete(Stage.BUILD_MIPMAPS, start);
+                    }
+                }
+                
+                List<Object> functionKey = Arrays.asList(image, mapper, colorData, resolution);
+                BiFunction<Double, Double, Double> f = runStage(Stage.MAP_COLORS, functions, functionKey, key -> mapper.mapColors(image, resolution, colorData));
+                
+                List<Object> heightsKey = Arrays.asList(f, resolution);
+                ContourPlotDisplay3D.FunctionCache cache = runStage(Stage.SAMPLE_HEIGHTS, heights, heightsKey, key -> new ContourPlotDisplay3D.FunctionCache((x, y) -> f.apply(x, 1 - y), resolution, 0, 1, 0, 1,
+                        this::isCancelled, fraction -> {
+                            if (!cancelled) {
+                                listener.progress(Stage.SAMPLE_HEIGHTS, fraction);
+                            }
+                        }));
+                
+                Model model;
+                if (cache.hasModel()) {
+                    cached(Stage.BUILD_MODEL);
+                    model = cache.getModel();
+                }
+                else {
+                    start(Stage.BUILD_MODEL);
+                    long start = System.nanoTime();
+                    model = cache.getModel();
+                    complete(Stage.BUILD_MODEL, start);
+                }
+                
+                if (!cancelled) {
+                    listener.completed(new Result(f, cache, model));
+                }
+            } catch (CancellationException e) {
+                //A newer job took over
+            } catch (RuntimeException e) {
+                if (!cancelled) {
+                    listener.failed(e);
+                }
+            }
+        }
+        
+        private <V> V runStage(Stage stage, Memo<List<Object>, V> memo, List<Object> key, Function<List<Object>, V> compute) {
+            if (memo.contains(key)) {
+                cached(stage);
+                return memo.get(key, compute);
+            }
+            start(stage);
+            long start = System.nanoTime();
+            V value = memo.get(key, compute);
+            complete(stage, start);
+            return value;
+        }
+        
+        private void cached(Stage stage) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            listener.stageCached(stage);
+        }
+        
+        private void start(Stage stage) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            listener.stageStarted(stage);
+            listener.progress(stage, 0);
+        }
+        
+        private void complete(Stage stage, long start) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            listener.progress(stage, 1);
+            listener.stageCompleted(stage, System.nanoTime() - start);
+        }
+    }
+}
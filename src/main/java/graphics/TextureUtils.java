@@ -4,8 +4,37 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 
 public class TextureUtils {
+    public static final double GAMMA = 2.2;
+    //Channels in linear light scaled to LINEAR_ONE, and the linear values where each encoded value starts being the nearest
+    private static final int LINEAR_ONE = 1 << 29;
+    private static final int[] LINEAR = new int[256];
+    private static final double[] THRESHOLD = new double[256];
+    //Smallest encoded value of each range of linear values, encoding starts there and moves up at most a step or two
+    private static final int BUCKET_SHIFT = 13;
+    private static final byte[] BUCKET_START = new byte[(LINEAR_ONE >> BUCKET_SHIFT) + 1];
+    
+    static {
+        for (int c = 0; c < 256; c++) {
+            LINEAR[c] = (int) Math.round(LINEAR_ONE * Math.pow(c / 255.0, GAMMA));
+            THRESHOLD[c] = LINEAR_ONE * Math.pow((c - 0.5) / 255.0, GAMMA);
+        }
+        THRESHOLD[0] = Double.NEGATIVE_INFINITY;
+        int c = 0;
+        for (int bucket = 0; bucket < BUCKET_START.length; bucket++) {
+            while (c < 255 && THRESHOLD[c + 1] <= bucket << BUCKET_SHIFT) {
+                c++;
+            }
+            BUCKET_START[bucket] = (byte) c;
+        }
+    }
+    
     public static PointDouble uvToXy(BufferedImage texture, double u, double v) {
-        return new PointDouble(texture.getWidth() * (u - (int) u + (u < 0 ? 1 : 0)), texture.getHeight() * (v - (int)v + (v < 0 ? 1 : 0)));
+        return new PointDouble(wrap(texture.getWidth(), u), wrap(texture.getHeight(), v));
+    }
+    
+    //One coordinate of uvToXy, for samplers that must not allocate
+    public static double wrap(int size, double t) {
+        return size * (t - (int) t + (t < 0 ? 1 : 0));
     }
     
     public static double interpolate(double a, double b, double alpha) {
@@ -13,7 +42,7 @@ public class TextureUtils {
     }
     
     public static Color interpolate(Color c1, Color c2, double alpha) {
-        double gamma = 2.2;
+        double gamma = GAMMA;
         int r = (int) Math.round(255 * Math.pow(Math.pow(c2.getRed() / 255.0, gamma) * alpha + Math.pow(c1.getRed() / 255.0, gamma) * (1 - alpha), 1 / gamma));
         int g = (int) Math.round(255 * Math.pow(Math.pow(c2.getGreen() / 255.0, gamma) * alpha + Math.pow(c1.getGreen() / 255.0, gamma) * (1 - alpha), 1 / gamma));
         int b = (int) Math.round(255 * Math.pow(Math.pow(c2.getBlue() / 255.0, gamma) * alpha + Math.pow(c1.getBlue() / 255.0, gamma) * (1 - alpha), 1 / gamma));
@@ -21,6 +50,36 @@ public class TextureUtils {
         return new Color(r, g, b);
     }
     
+    //Same as interpolate on packed RGB, through the gamma tables. The result is opaque
+    public static int interpolate(int rgb1, int rgb2, double alpha) {
+        int r = encode((int) (LINEAR[(rgb1 >> 16) & 0xFF] * (1 - alpha) + LINEAR[(rgb2 >> 16) & 0xFF] * alpha + 0.5));
+        int g = encode((int) (LINEAR[(rgb1 >> 8) & 0xFF] * (1 - alpha) + LINEAR[(rgb2 >> 8) & 0xFF] * alpha + 0.5));
+        int b = encode((int) (LINEAR[rgb1 & 0xFF] * (1 - alpha) + LINEAR[rgb2 & 0xFF] * alpha + 0.5));
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+    
+    //Same as interpolate with alpha 0.5 on packed RGB, through the gamma tables. The result is opaque
+    public static int average(int rgb1, int rgb2) {
+        int r = encode((LINEAR[(rgb1 >> 16) & 0xFF] + LINEAR[(rgb2 >> 16) & 0xFF]) >>> 1);
+        int g = encode((LINEAR[(rgb1 >> 8) & 0xFF] + LINEAR[(rgb2 >> 8) & 0xFF]) >>> 1);
+        int b = encode((LINEAR[rgb1 & 0xFF] + LINEAR[rgb2 & 0xFF]) >>> 1);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+    
+    //Channel in linear light, scaled so that 255 is 1 << 29
+    static int linear(int c) {
+        return LINEAR[c];
+    }
+    
+    //Nearest encoded value of a linear one
+    static int encode(int linear) {
+        int c = BUCKET_START[linear >>> BUCKET_SHIFT] & 0xFF;
+        while (c < 255 && THRESHOLD[c + 1] <= linear) {
+            c++;
+        }
+        return c;
+    }
+    
     public static Color getColor(BufferedImage texture, double u, double v, Filtering filter) {
         switch (filter) {
             case OFF:
@@ -29,6 +88,7 @@ public class TextureUtils {
             case BILINEAR:
             case TRILINEAR:
             case ANISOTROPIC:
+            case SUMMED_AREA:
                 return getColor(texture, u, v);
         }
         PointDouble xy = uvToXy(texture, u, v);
@@ -58,6 +118,8 @@ public class TextureUtils {
         OFF,
         BILINEAR,
         TRILINEAR,
-        ANISOTROPIC
+        ANISOTROPIC,
+        //Exact box average over the footprint from a summed area table of the texture
+        SUMMED_AREA
     }
 }
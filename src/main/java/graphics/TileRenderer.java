@@ -0,0 +1,264 @@
+package graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TileRenderer {
+    public static final int TILE_SIZE = 64;
+    public static final int BOUNDS_STRIDE = 5;
+    
+    private final int tileSize;
+    private final AtomicLong occludedTriangles = new AtomicLong();
+    private final AtomicLong occludedGroups = new AtomicLong();
+    
+    public TileRenderer() {
+        this(TILE_SIZE);
+    }
+    
+    public TileRenderer(int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Invalid tile size");
+        }
+        this.tileSize = tileSize;
+    }
+    
+    //Bounds hold minX, minY, maxX, maxY in screen pixels and the nearest depth for each triangle
+    public void render(FrameBuffer frame, double[] bounds, int count, RenderScheduler scheduler, TriangleDrawer drawer) throws InterruptedException {
+        render(frame, bounds, count, null, null, scheduler, drawer);
+    }
+    
+    //Triangles can be grouped, groups[triangle] indexes groupBounds laid out like the triangle bounds.
+    //Triangles of a group have to be consecutive, the whole group is skipped in a tile when its bounds are occluded there.
+    //Submitting groups and triangles front to back lets the hierarchical depth test reject most hidden ones.
+    public void render(FrameBuffer frame, double[] bounds, int count, int[] groups, double[] groupBounds, RenderScheduler scheduler, TriangleDrawer drawer) throws InterruptedException {
+        occludedTriangles.set(0);
+        occludedGroups.set(0);
+        int tilesX = (frame.getWidth() + tileSize - 1) / tileSize;
+        int tilesY = (frame.getHeight() + tileSize - 1) / tileSize;
+        if (tilesX == 0 || tilesY == 0 || count == 0) {
+            return;
+        }
+        
+        //Binning, first pass counts triangles per tile and second one fills the bins in submission order
+        int[] binSizes = new int[tilesX * tilesY];
+        for (int i = 0; i < count; i++) {
+            forEachTile(bounds, i, tilesX, tilesY, tile -> binSizes[tile]++);
+        }
+        int[][] bins = new int[binSizes.length][];
+        for (int t = 0; t < bins.length; t++) {
+            bins[t] = new int[binSizes[t]];
+        }
+        int[] fill = new int[binSizes.length];
+        for (int i = 0; i < count; i++) {
+            int triangle = i;
+            forEachTile(bounds, i, tilesX, tilesY, tile -> bins[tile][fill[tile]++] = triangle);
+        }
+        
+        //Each tile is owned by exactly one task, so its buffers need no synchronization
+        List<Runnable> tasks = new ArrayList<>();
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int[] bin = bins[ty * tilesX + tx];
+                if (bin.length == 0) {
+                    continue;
+                }
+                int x = tx * tileSize;
+                int y = ty * tileSize;
+                int width = Math.min(tileSize, frame.getWidth() - x);
+                int height = Math.min(tileSize, frame.getHeight() - y);
+                tasks.add(() -> {
+                    Tile tile = new Tile(x, y, width, height);
+                    tile.load(frame);
+                    int group = -1;
+                    boolean groupOccluded = false;
+                    long occluded = 0;
+                    long skippedGroups = 0;
+                    for (int triangle : bin) {
+                        if (groups != null && groups[triangle] != group) {
+                            group = groups[triangle];
+                            groupOccluded = tile.isOccluded(groupBounds, BOUNDS_STRIDE * group);
+                            if (groupOccluded) {
+                                skippedGroups++;
+                            }
+                        }
+                        if (groupOccluded || tile.isOccluded(bounds, BOUNDS_STRIDE * triangle)) {
+                            occluded++;
+                            continue;
+                        }
+                        drawer.draw(tile, triangle);
+                    }
+                    tile.store(frame);
+                    occludedTriangles.addAndGet(occluded);
+                    occludedGroups.addAndGet(skippedGroups);
+                });
+            }
+        }
+        scheduler.invokeAll(RenderScheduler.Priority.INTERACTIVE, tasks);
+    }
+    
+    private void forEachTile(double[] bounds, int triangle, int tilesX, int tilesY, TileConsumer action) {
+        double minX = bounds[BOUNDS_STRIDE * triangle];
+        double minY = bounds[BOUNDS_STRIDE * triangle + 1];
+        double maxX = bounds[BOUNDS_STRIDE * triangle + 2];
+        double maxY = bounds[BOUNDS_STRIDE * triangle + 3];
+        if (!(minX <= maxX && minY <= maxY)) {
+            return;
+        }
+        int tx0 = (int) Math.max(0, Math.floor(minX / tileSize));
+        int ty0 = (int) Math.max(0, Math.floor(minY / tileSize));
+        int tx1 = (int) Math.min(tilesX - 1, Math.floor(maxX / tileSize));
+        int ty1 = (int) Math.min(tilesY - 1, Math.floor(maxY / tileSize));
+        if (tx0 > tx1 || ty0 > ty1) {
+            return;
+        }
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                action.accept(ty * tilesX + tx);
+            }
+        }
+    }
+    
+    public int getTileSize() {
+        return tileSize;
+    }
+    
+    //Triangles rejected by the hierarchical depth test in the last render, counted once per tile
+    public long getOccludedTriangles() {
+        return occludedTriangles.get();
+    }
+    
+    //Groups rejected as a whole in the last render, counted once per tile
+    public long getOccludedGroups() {
+        return occludedGroups.get();
+    }
+    
+    private interface TileConsumer {
+        void accept(int tile);
+    }
+    
+    public interface TriangleDrawer {
+        void draw(Tile tile, int triangle);
+    }
+    
+    public static class Tile {
+        //Side of the square blocks of the coarse depth buffer
+        public static final int BLOCK_SIZE = 8;
+        
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        private final float[] depth;
+        private final int[] color;
+        private final Rasterizer rasterizer = new Rasterizer();
+        
+        //Coarse depth buffer, the farthest depth of each block. Blocks written since their last update are marked dirty
+        //and recomputed when they are tested next
+        private final int blocksX;
+        private final int blocksY;
+        private final float[] blockDepth;
+        private final boolean[] blockDirty;
+        
+        public Tile(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            depth = new float[width * height];
+            color = new int[width * height];
+            Arrays.fill(depth, Float.POSITIVE_INFINITY);
+            blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            blocksY = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            blockDepth = new float[blocksX * blocksY];
+            blockDirty = new boolean[blocksX * blocksY];
+            Arrays.fill(blockDepth, Float.POSITIVE_INFINITY);
+        }
+        
+        public boolean contains(int px, int py) {
+            return px >= x && px < x + width && py >= y && py < y + height;
+        }
+        
+        //Coordinates are in screen pixels
+        public boolean testAndSetDepth(int px, int py, double z) {
+            if (!contains(px, py) || !(z < depth[(py - y) * width + px - x])) {
+                return false;
+            }
+            depth[(py - y) * width + px - x] = (float) z;
+            blockDirty[((py - y) / BLOCK_SIZE) * blocksX + (px - x) / BLOCK_SIZE] = true;
+            return true;
+        }
+        
+        //True if everything inside the bounds at offset is behind the depth already stored, bounds are laid out as
+        //minX, minY, maxX, maxY, nearest depth
+        public boolean isOccluded(double[] bounds, int offset) {
+            double nearest = bounds[offset + 4];
+            int bx0 = (int) Math.max(0, Math.floor((bounds[offset] - x) / BLOCK_SIZE));
+            int by0 = (int) Math.max(0, Math.floor((bounds[offset + 1] - y) / BLOCK_SIZE));
+            int bx1 = (int) Math.min(blocksX - 1, Math.floor((bounds[offset + 2] - x) / BLOCK_SIZE));
+            int by1 = (int) Math.min(blocksY - 1, Math.floor((bounds[offset + 3] - y) / BLOCK_SIZE));
+            if (!(nearest >= Double.NEGATIVE_INFINITY)) {
+                return false;
+            }
+            for (int by = by0; by <= by1; by++) {
+                for (int bx = bx0; bx <= bx1; bx++) {
+                    int block = by * blocksX + bx;
+                    if (blockDirty[block]) {
+                        updateBlock(bx, by);
+                    }
+                    if (nearest < blockDepth[block]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        
+        private void updateBlock(int bx, int by) {
+            float farthest = Float.NEGATIVE_INFINITY;
+            int endX = Math.min(width, (bx + 1) * BLOCK_SIZE);
+            int endY = Math.min(height, (by + 1) * BLOCK_SIZE);
+            for (int j = by * BLOCK_SIZE; j < endY; j++) {
+                for (int i = bx * BLOCK_SIZE; i < endX; i++) {
+                    farthest = Math.max(farthest, depth[j * width + i]);
+                }
+            }
+            blockDepth[by * blocksX + bx] = farthest;
+            blockDirty[by * blocksX + bx] = false;
+        }
+        
+        public void setPixel(int px, int py, int argb) {
+            if (contains(px, py)) {
+                color[(py - y) * width + px - x] = argb;
+            }
+        }
+        
+        public Rasterizer getRasterizer() {
+            return rasterizer;
+        }
+        
+        private void load(FrameBuffer frame) {
+            int[] pixels = frame.getPixels();
+            DepthBuffer frameDepth = frame.getDepth();
+            for (int j = 0; j < height; j++) {
+                System.arraycopy(pixels, (y + j) * frame.getWidth() + x, color, j * width, width);
+                for (int i = 0; i < width; i++) {
+                    depth[j * width + i] = (float) frameDepth.get(x + i, y + j);
+                }
+            }
+            Arrays.fill(blockDirty, true);
+        }
+        
+        private void store(FrameBuffer frame) {
+            int[] pixels = frame.getPixels();
+            DepthBuffer frameDepth = frame.getDepth();
+            for (int j = 0; j < height; j++) {
+                System.arraycopy(color, j * width, pixels, (y + j) * frame.getWidth() + x, width);
+                for (int i = 0; i < width; i++) {
+                    frameDepth.set(x + i, y + j, depth[j * width + i]);
+                }
+            }
+        }
+    }
+}
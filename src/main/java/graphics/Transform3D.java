@@ -15,4 +15,24 @@ public class Transform3D {
         this.rotation = rotation;
         this.scale = scale;
     }
+    
+    //Scale, then rotation, then offset, composed into a single 4x4 matrix
+    public Matrix toMatrix() {
+        Matrix sm = Matrix.scaleMatrix3D(scale.getX(), scale.getY(), scale.getZ());
+        Matrix rm = Matrix.rotationMatrix3D(rotation.getX(), rotation.getY(), rotation.getZ());
+        Matrix om = Matrix.offsetMatrix3D(offset.getX(), offset.getY(), offset.getZ());
+        return sm.multiply(rm).multiply(om);
+    }
+    
+    //Row-major copy of the composed matrix
+    public double[] toArray() {
+        Matrix m = toMatrix();
+        double[] values = new double[16];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                values[4 * i + j] = m.get(i, j);
+            }
+        }
+        return values;
+    }
 }
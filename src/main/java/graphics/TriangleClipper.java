@@ -0,0 +1,219 @@
+package graphics;
+
+import java.util.Arrays;
+
+//Culling and clipping stage between vertex processing and rasterization.
+//Triangles are rejected when they have invalid coordinates, no area, face away (if enabled), lie outside the viewport
+//or fall between pixel centers. Triangles reaching past the guard band around the viewport are clipped to it,
+//smaller overhangs are left to the scissor test of the rasterizer.
+public class TriangleClipper {
+    public static final double GUARD_BAND = 64;
+    
+    private static final int ATTRIBUTES = 6;
+    private static final int MAX_VERTICES = 3 + 4;
+    
+    private final int width;
+    private final int height;
+    private final boolean backFaceCulling;
+    private final double guardMinX;
+    private final double guardMinY;
+    private final double guardMaxX;
+    private final double guardMaxY;
+    
+    private int[] triangles = new int[0];
+    private int triangleCount = 0;
+    
+    private double[] polygon = new double[ATTRIBUTES * MAX_VERTICES];
+    private double[] clipped = new double[ATTRIBUTES * MAX_VERTICES];
+    
+    private int culledInvalid = 0;
+    private int culledBackFace = 0;
+    private int culledOutside = 0;
+    private int culledEmpty = 0;
+    private int clippedCount = 0;
+    
+    public TriangleClipper(int width, int height, boolean backFaceCulling) {
+        this.width = width;
+        this.height = height;
+        this.backFaceCulling = backFaceCulling;
+        guardMinX = -GUARD_BAND;
+        guardMinY = -GUARD_BAND;
+        guardMaxX = width + GUARD_BAND;
+        guardMaxY = height + GUARD_BAND;
+    }
+    
+    public void reset() {
+        triangleCount = 0;
+    }
+    
+    //Runs triangles start to end - 1 of the index list through the stage and appends the visible ones to the output,
+    //vertices created by clipping are appended to the buffer
+    public void process(VertexBuffer vertices, int[] indices, int start, int end) {
+        for (int i = start; i < end; i++) {
+            process(vertices, indices[3 * i], indices[3 * i + 1], indices[3 * i + 2]);
+        }
+    }
+    
+    private void process(VertexBuffer vb, int a, int b, int c) {
+        double ax = vb.x[a];
+        double ay = vb.y[a];
+        double bx = vb.x[b];
+        double by = vb.y[b];
+        double cx = vb.x[c];
+        double cy = vb.y[c];
+        if (!isFinite(ax) || !isFinite(ay) || !isFinite(bx) || !isFinite(by) || !isFinite(cx) || !isFinite(cy)
+                || !isFinite(vb.z[a]) || !isFinite(vb.z[b]) || !isFinite(vb.z[c])) {
+            culledInvalid++;
+            return;
+        }
+        
+        //Screen y grows downwards, so a positive area is clockwise on screen. Terrain triangles are wound so that
+        //their upper side shows up clockwise, the other side counts as the back
+        double area = (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+        if (area == 0) {
+            culledEmpty++;
+            return;
+        }
+        if (backFaceCulling && area < 0) {
+            culledBackFace++;
+            return;
+        }
+        
+        double minX = Math.min(Math.min(ax, bx), cx);
+        double minY = Math.min(Math.min(ay, by), cy);
+        double maxX = Math.max(Math.max(ax, bx), cx);
+        double maxY = Math.max(Math.max(ay, by), cy);
+        if (maxX < 0 || maxY < 0 || minX > width || minY > height) {
+            culledOutside++;
+            return;
+        }
+        //Pixels are sampled at their centers, a triangle with no center inside its bounds covers nothing
+        if (Math.ceil(minX - 0.5) > Math.floor(maxX - 0.5) || Math.ceil(minY - 0.5) > Math.floor(maxY - 0.5)) {
+            culledEmpty++;
+            return;
+        }
+        
+        if (minX >= guardMinX && minY >= guardMinY && maxX <= guardMaxX && maxY <= guardMaxY) {
+            add(a, b, c);
+            return;
+        }
+        clip(vb, a, b, c);
+    }
+    
+    //Sutherland-Hodgman against the guard band, the resulting convex polygon is split into a fan
+    private void clip(VertexBuffer vb, int a, int b, int c) {
+        int count = 0;
+        count = load(vb, a, polygon, count);
+        count = load(vb, b, polygon, count);
+        count = load(vb, c, polygon, count);
+        
+        count = clipPlane(count, 0, guardMinX, false);
+        count = clipPlane(count, 0, guardMaxX, true);
+        count = clipPlane(count, 1, guardMinY, false);
+        count = clipPlane(count, 1, guardMaxY, true);
+        if (count < 3) {
+            culledOutside++;
+            return;
+        }
+        clippedCount++;
+        
+        int first = store(vb, 0);
+        int previous = store(vb, 1);
+        for (int i = 2; i < count; i++) {
+            int current = store(vb, i);
+            add(first, previous, current);
+            previous = current;
+        }
+    }
+    
+    //Keeps the part of the polygon with coordinate >= limit, or <= limit when upper is set
+    private int clipPlane(int count, int coordinate, double limit, boolean upper) {
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            int current = ATTRIBUTES * i;
+            int next = ATTRIBUTES * ((i + 1) % count);
+            double dc = upper ? limit - polygon[current + coordinate] : polygon[current + coordinate] - limit;
+            double dn = upper ? limit - polygon[next + coordinate] : polygon[next + coordinate] - limit;
+            if (dc >= 0) {
+                System.arraycopy(polygon, current, clipped, ATTRIBUTES * result++, ATTRIBUTES);
+            }
+            if ((dc >= 0) != (dn >= 0)) {
+                //Interpolate from the inside vertex, so both triangles sharing an edge get the same point
+                int in = dc >= 0 ? current : next;
+                int out = dc >= 0 ? next : current;
+                double t = (dc >= 0 ? dc : dn) / Math.abs(dc - dn);
+                int target = ATTRIBUTES * result++;
+                for (int k = 0; k < ATTRIBUTES; k++) {
+                    clipped[target + k] = polygon[in + k] + (polygon[out + k] - polygon[in + k]) * t;
+                }
+                clipped[target + coordinate] = limit;
+            }
+        }
+        double[] swap = polygon;
+        polygon = clipped;
+        clipped = swap;
+        return result;
+    }
+    
+    private static int load(VertexBuffer vb, int index, double[] target, int count) {
+        int offset = ATTRIBUTES * count;
+        target[offset] = vb.x[index];
+        target[offset + 1] = vb.y[index];
+        target[offset + 2] = vb.z[index];
+        target[offset + 3] = vb.u[index];
+        target[offset + 4] = vb.v[index];
+        target[offset + 5] = vb.h[index];
+        return count + 1;
+    }
+    
+    private int store(VertexBuffer vb, int vertex) {
+        int offset = ATTRIBUTES * vertex;
+        return vb.add(polygon[offset], polygon[offset + 1], polygon[offset + 2], polygon[offset + 3], polygon[offset + 4], polygon[offset + 5]);
+    }
+    
+    private void add(int a, int b, int c) {
+        if (3 * triangleCount + 3 > triangles.length) {
+            triangles = Arrays.copyOf(triangles, Math.max(3 * triangleCount + 3, 2 * triangles.length));
+        }
+        triangles[3 * triangleCount] = a;
+        triangles[3 * triangleCount + 1] = b;
+        triangles[3 * triangleCount + 2] = c;
+        triangleCount++;
+    }
+    
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+    
+    public int[] getTriangles() {
+        return triangles;
+    }
+    
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+    
+    public int getCulledInvalid() {
+        return culledInvalid;
+    }
+    
+    public int getCulledBackFace() {
+        return culledBackFace;
+    }
+    
+    public int getCulledOutside() {
+        return culledOutside;
+    }
+    
+    public int getCulledEmpty() {
+        return culledEmpty;
+    }
+    
+    public int getClippedCount() {
+        return clippedCount;
+    }
+    
+    public boolean isBackFaceCulling() {
+        return backFaceCulling;
+    }
+}
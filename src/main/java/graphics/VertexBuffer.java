@@ -0,0 +1,49 @@
+package graphics;
+
+import java.util.Arrays;
+
+//Screen space vertices of one model for one frame.
+//x and y are in screen pixels, z is the transformed depth and h is the untransformed model height used for contours.
+//Clipping appends the vertices it creates after the mesh vertices.
+public class VertexBuffer {
+    public int count;
+    public double[] x;
+    public double[] y;
+    public double[] z;
+    public double[] u;
+    public double[] v;
+    public double[] h;
+    
+    public VertexBuffer(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative vertex count");
+        }
+        this.count = count;
+        x = new double[count];
+        y = new double[count];
+        z = new double[count];
+        u = new double[count];
+        v = new double[count];
+        h = new double[count];
+    }
+    
+    //Returns the index of the new vertex
+    public int add(double x, double y, double z, double u, double v, double h) {
+        if (count == this.x.length) {
+            int capacity = Math.max(16, 2 * count);
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.z = Arrays.copyOf(this.z, capacity);
+            this.u = Arrays.copyOf(this.u, capacity);
+            this.v = Arrays.copyOf(this.v, capacity);
+            this.h = Arrays.copyOf(this.h, capacity);
+        }
+        this.x[count] = x;
+        this.y[count] = y;
+        this.z[count] = z;
+        this.u[count] = u;
+        this.v[count] = v;
+        this.h[count] = h;
+        return count++;
+    }
+}
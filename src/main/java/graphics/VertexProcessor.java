@@ -0,0 +1,48 @@
+package graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Vertex stage: every unique vertex of a mesh is transformed and projected once per frame,
+//triangles then look their corners up in the resulting buffer by index
+public class VertexProcessor {
+    private static final int BATCH_MIN = 1024;
+    
+    private VertexProcessor() {}
+    
+    public static VertexBuffer process(Mesh mesh, Transform3D transform, Projection projection, boolean warp, RenderScheduler scheduler) throws InterruptedException {
+        //The transform is composed once, vertices only see plain multiply-adds
+        double[] m = transform.toArray();
+        double[] vertices = mesh.getVertices();
+        VertexBuffer out = new VertexBuffer(mesh.getVertexCount());
+        
+        int batch = Math.max(BATCH_MIN, (out.count + scheduler.getThreadCount() - 1) / scheduler.getThreadCount());
+        List<Runnable> tasks = new ArrayList<>();
+        for (int start = 0; start < out.count; start += batch) {
+            int from = start;
+            int to = Math.min(out.count, start + batch);
+            tasks.add(() -> {
+                double[] screen = new double[2];
+                for (int i = from; i < to; i++) {
+                    int offset = Mesh.STRIDE * i;
+                    double x = vertices[offset];
+                    double y = vertices[offset + 1];
+                    double z = vertices[offset + 2];
+                    double tx = m[0] * x + m[1] * y + m[2] * z + m[3];
+                    double ty = m[4] * x + m[5] * y + m[6] * z + m[7];
+                    double tz = m[8] * x + m[9] * y + m[10] * z + m[11];
+                    
+                    projection.project(tx, ty, tz, warp, screen, 0);
+                    out.x[i] = screen[0];
+                    out.y[i] = screen[1];
+                    out.z[i] = tz;
+                    out.u[i] = vertices[offset + 3];
+                    out.v[i] = vertices[offset + 4];
+                    out.h[i] = y;
+                }
+            });
+        }
+        scheduler.invokeAll(RenderScheduler.Priority.INTERACTIVE, tasks);
+        return out;
+    }
+}
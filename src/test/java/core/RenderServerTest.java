@@ -0,0 +1,146 @@
+package core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+//Runs the server on a free loopback port with one worker and no queue, so a second scene is rejected while one renders
+public class RenderServerTest {
+    private static final long TIMEOUT_MILLIS = 30000;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private RenderServer server;
+    private String image;
+    
+    @Before
+    public void setUp() throws IOException {
+        BufferedImage texture = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                texture.setRGB(x, y, (x * 8) << 16 | (y * 8) << 8);
+            }
+        }
+        File file = folder.newFile("texture.png");
+        ImageIO.write(texture, "png", file);
+        image = URLEncoder.encode(file.getAbsolutePath(), "UTF-8");
+        
+        server = new RenderServer(0, 1, 0);
+        server.start();
+    }
+    
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+    
+    @Test
+    public void rendersPng() throws IOException {
+        HttpURLConnection connection = open(scene(64, 48));
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/png", connection.getContentType());
+        BufferedImage png;
+        try (InputStream in = connection.getInputStream()) {
+            png = ImageIO.read(in);
+        }
+        assertNotNull(png);
+        assertEquals(64, png.getWidth());
+        assertEquals(48, png.getHeight());
+        
+        Map<String, Long> stats = stats();
+        assertEquals(1, (long) stats.get("requests"));
+        assertEquals(1, (long) stats.get("rendered"));
+    }
+    
+    @Test
+    public void rejectsInvalidScene() throws IOException {
+        assertEquals(400, open("/render?width=64").getResponseCode());
+    }
+    
+    @Test
+    public void deduplicatesAndRejectsWhileBusy() throws Exception {
+        //Large enough to still be rendering while the other requests arrive
+        String slow = scene(2000, 2000);
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> first = clients.submit(() -> open(slow).getResponseCode());
+            awaitStat("active", 1);
+            Future<Integer> second = clients.submit(() -> open(slow).getResponseCode());
+            awaitStat("deduplicated", 1);
+            
+            HttpURLConnection rejected = open(scene(64, 48));
+            assertEquals(503, rejected.getResponseCode());
+            assertEquals("1", rejected.getHeaderField("Retry-After"));
+            
+            assertEquals(200, (int) first.get());
+            assertEquals(200, (int) second.get());
+        } finally {
+            clients.shutdownNow();
+        }
+        
+        Map<String, Long> stats = stats();
+        assertEquals(3, (long) stats.get("requests"));
+        assertEquals(1, (long) stats.get("rendered"));
+        assertEquals(1, (long) stats.get("deduplicated"));
+        assertEquals(1, (long) stats.get("rejected"));
+        assertEquals(0, (long) stats.get("failed"));
+        assertTrue(stats.containsKey("latency.p50"));
+    }
+    
+    private String scene(int width, int height) {
+        return "/render?image=" + image + "&colors=ffffff:1,000000:0&resolution=32&width=" + width + "&height=" + height;
+    }
+    
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setConnectTimeout((int) TIMEOUT_MILLIS);
+        connection.setReadTimeout((int) TIMEOUT_MILLIS);
+        return connection;
+    }
+    
+    private Map<String, Long> stats() throws IOException {
+        HttpURLConnection connection = open("/stats");
+        assertEquals(200, connection.getResponseCode());
+        Map<String, Long> stats = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                stats.put(parts[0], Long.parseLong(parts[1]));
+            }
+        }
+        return stats;
+    }
+    
+    private void awaitStat(String name, long value) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (stats().get(name) != value) {
+            assertTrue("Timed out waiting for " + name + " " + value, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}